@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.impl.BedrockDB;
+import org.nukkit.leveldb.BedrockDBFactory;
+import org.nukkit.leveldb.ExtendedCompressionType;
+import org.nukkit.leveldb.ExtendedOptions;
+import org.nukkit.leveldb.ExtendedReadOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the database on the operations of a server: subchunk puts, chunk saves written
+ * as one batch, subchunk gets and chunk loads iterating the records of one chunk, against a
+ * world of {@code chunks} saved chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BedrockDBBenchmark {
+
+    private static final int VALUES = 256;
+
+    @Param({"ZLIB_RAW", "NONE"})
+    public ExtendedCompressionType compressionType;
+
+    @Param({"4096"})
+    public int chunks;
+
+    private File directory;
+    private BedrockDB db;
+    private byte[][] subChunks;
+    private byte[][] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        ChunkData data = new ChunkData(0);
+        subChunks = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            subChunks[i] = data.subChunk();
+        }
+        keys = new byte[chunks * ChunkData.SUB_CHUNKS][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ChunkData.subChunkKey(i / ChunkData.SUB_CHUNKS, i % ChunkData.SUB_CHUNKS);
+        }
+
+        directory = Files.createTempDirectory("leveldb-benchmark").toFile();
+        ExtendedOptions options = new ExtendedOptions();
+        options.createIfMissing(true);
+        options.extendedCompressionType(compressionType);
+        db = new BedrockDB(options, directory);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            try (WriteBatch batch = db.createWriteBatch()) {
+                data.saveChunk(chunk, batch::put);
+                db.write(batch);
+            }
+        }
+        // read from tables, as a server does once the world has been saved
+        db.compactRange(null, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        db.close();
+        BedrockDBFactory.factory.destroy(directory, new ExtendedOptions());
+    }
+
+    @Benchmark
+    public void put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        db.put(keys[random.nextInt(keys.length)], subChunks[random.nextInt(VALUES)]);
+    }
+
+    @Benchmark
+    public void writeBatch() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int chunk = random.nextInt(chunks);
+        try (WriteBatch batch = db.createWriteBatch()) {
+            for (int subChunk = 0; subChunk < ChunkData.SUB_CHUNKS; subChunk++) {
+                batch.put(ChunkData.subChunkKey(chunk, subChunk), subChunks[random.nextInt(VALUES)]);
+            }
+            db.write(batch);
+        }
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return db.get(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public long iterateChunk() throws IOException {
+        byte[] prefix = ChunkData.chunkPrefix(ThreadLocalRandom.current().nextInt(chunks));
+        long bytes = 0;
+        try (DBIterator iterator = db.iterator(new ExtendedReadOptions().prefix(prefix))) {
+            for (iterator.seekToFirst(); iterator.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                bytes += entry.getValue().length;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.table.BlockBuilder;
+import org.iq80.leveldb.table.BytewiseComparator;
+import org.iq80.leveldb.table.ExtendedTable;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+import org.iq80.leveldb.util.Snappy;
+import org.iq80.leveldb.util.Zlib;
+import org.nukkit.leveldb.ExtendedCompressionType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how block decompression scales with reader threads. Run with
+ * {@code -t 1}, {@code -t 4}, {@code -t 16}, ... and compare {@code globalLock=true},
+ * which reproduces the class-wide monitor readers used to serialise on, against
+ * the lock-free path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockDecompressionBenchmark {
+
+    private static final Object GLOBAL_LOCK = new Object();
+
+    @Param({"ZLIB_RAW", "ZLIB", "SNAPPY"})
+    public ExtendedCompressionType compressionType;
+
+    @Param({"false", "true"})
+    public boolean globalLock;
+
+    private ByteBuffer compressed;
+
+    @Setup
+    public void setup() throws IOException {
+        Slice raw = buildBlock(4 * 1024);
+        byte[] output = new byte[Zlib.maxCompressedLength(raw.length())];
+        int length;
+        switch (compressionType) {
+            case ZLIB:
+                length = Zlib.compress(raw.getRawArray(), raw.getRawOffset(), raw.length(), output, 0);
+                break;
+            case ZLIB_RAW:
+                length = Zlib.compressRaw(raw.getRawArray(), raw.getRawOffset(), raw.length(), output, 0);
+                break;
+            case SNAPPY:
+                if (!Snappy.available()) {
+                    throw new IllegalStateException("Snappy is not available");
+                }
+                output = new byte[Snappy.maxCompressedLength(raw.length())];
+                length = Snappy.compress(raw.getRawArray(), raw.getRawOffset(), raw.length(), output, 0);
+                break;
+            default:
+                throw new IllegalArgumentException(compressionType.name());
+        }
+        compressed = ByteBuffer.wrap(Arrays.copyOf(output, length));
+    }
+
+    @Benchmark
+    public Slice uncompress() throws IOException {
+        ByteBuffer input = compressed.duplicate();
+        if (globalLock) {
+            synchronized (GLOBAL_LOCK) {
+                return ExtendedTable.uncompress(compressionType, input);
+            }
+        }
+        return ExtendedTable.uncompress(compressionType, input);
+    }
+
+    /**
+     * Builds a data block of chunk records: sorted [x][z][tag][subchunk] keys with
+     * palette-indexed payloads, which compress roughly like real world blocks.
+     */
+    static Slice buildBlock(int blockSize) {
+        Random random = new Random(0);
+        BlockBuilder builder = new BlockBuilder(blockSize * 2, 16, new BytewiseComparator());
+        int x = 0;
+        int subChunk = 0;
+        while (builder.currentSizeEstimate() < blockSize) {
+            Slice key = Slices.allocate(10);
+            key.setInt(0, x);
+            key.setInt(4, 0);
+            key.setByte(8, 0x2f);
+            key.setByte(9, subChunk);
+
+            byte[] value = new byte[512];
+            int paletteSize = 1 + random.nextInt(8);
+            for (int i = 0; i < value.length; i++) {
+                value[i] = (byte) (i % 64 == 0 ? random.nextInt(paletteSize) : value[Math.max(0, i - 1)]);
+            }
+            builder.add(key, Slices.wrappedBuffer(value));
+
+            if (++subChunk == 16) {
+                subChunk = 0;
+                x++;
+            }
+        }
+        return builder.finish().copySlice();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Generates synthetic chunk records shaped like the ones of a Bedrock world: keys of
+ * little-endian chunk x and z followed by a record tag, and palette-indexed subchunk
+ * payloads that compress roughly like real terrain.
+ */
+final class ChunkData {
+    static final byte VERSION = 0x2c;
+    static final byte DATA_2D = 0x2d;
+    static final byte SUB_CHUNK_PREFIX = 0x2f;
+    static final int SUB_CHUNKS = 16;
+
+    private static final int BLOCKS = 4096;
+
+    private final Random random;
+
+    ChunkData(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Returns the key of a chunk record. Chunks are laid out on a 64 chunk wide square
+     * around the origin.
+     */
+    static byte[] key(int chunk, byte tag) {
+        return key(chunk % 64 - 32, chunk / 64 - 32, tag);
+    }
+
+    static byte[] key(int x, int z, byte tag) {
+        return ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(x)
+                .putInt(z)
+                .put(tag)
+                .array();
+    }
+
+    static byte[] subChunkKey(int chunk, int subChunk) {
+        return subChunkKey(chunk % 64 - 32, chunk / 64 - 32, subChunk);
+    }
+
+    static byte[] subChunkKey(int x, int z, int subChunk) {
+        return ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(x)
+                .putInt(z)
+                .put(SUB_CHUNK_PREFIX)
+                .put((byte) subChunk)
+                .array();
+    }
+
+    /**
+     * Returns the key prefix shared by all records of a chunk.
+     */
+    static byte[] chunkPrefix(int chunk) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(chunk % 64 - 32)
+                .putInt(chunk / 64 - 32)
+                .array();
+    }
+
+    /**
+     * Passes the records written by a save of {@code chunk} to {@code consumer}.
+     */
+    void saveChunk(int chunk, BiConsumer<byte[], byte[]> consumer) {
+        consumer.accept(key(chunk, VERSION), new byte[]{40});
+        consumer.accept(key(chunk, DATA_2D), data2D());
+        for (int subChunk = 0; subChunk < SUB_CHUNKS; subChunk++) {
+            consumer.accept(subChunkKey(chunk, subChunk), subChunk());
+        }
+    }
+
+    /**
+     * Returns the records of {@code chunks} chunks sorted by key, as a table holds them.
+     */
+    TreeMap<Slice, Slice> sortedChunks(int chunks) {
+        TreeMap<Slice, Slice> records = new TreeMap<>();
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            saveChunk(chunk, (key, value) -> records.put(Slices.wrappedBuffer(key), Slices.wrappedBuffer(value)));
+        }
+        return records;
+    }
+
+    /**
+     * Returns a version 8 subchunk holding one block storage: a header, the palette indexes
+     * of the 4096 blocks packed into little-endian words, and the palette.
+     */
+    byte[] subChunk() {
+        int paletteSize = 1 + random.nextInt(16);
+        int bitsPerBlock = Math.max(1, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+        int blocksPerWord = 32 / bitsPerBlock;
+        int words = (BLOCKS + blocksPerWord - 1) / blocksPerWord;
+
+        byte[][] palette = new byte[paletteSize][];
+        int paletteLength = 0;
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = paletteEntry(random.nextInt(512));
+            paletteLength += palette[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(3 + words * 4 + 4 + paletteLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 8).put((byte) 1).put((byte) (bitsPerBlock << 1));
+        // runs of the same block, as layers of stone, dirt and air
+        int block = 0;
+        for (int word = 0; word < words; word++) {
+            int bits = 0;
+            for (int i = 0; i < blocksPerWord; i++) {
+                if (random.nextInt(32) == 0) {
+                    block = random.nextInt(paletteSize);
+                }
+                bits |= block << (i * bitsPerBlock);
+            }
+            buffer.putInt(bits);
+        }
+        buffer.putInt(paletteSize);
+        for (byte[] entry : palette) {
+            buffer.put(entry);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns a heightmap of 256 little-endian shorts followed by 256 biome ids.
+     */
+    byte[] data2D() {
+        ByteBuffer buffer = ByteBuffer.allocate(768).order(ByteOrder.LITTLE_ENDIAN);
+        int height = 60 + random.nextInt(16);
+        for (int i = 0; i < 256; i++) {
+            height = Math.max(0, Math.min(255, height + random.nextInt(3) - 1));
+            buffer.putShort((short) height);
+        }
+        byte biome = (byte) random.nextInt(32);
+        for (int i = 0; i < 256; i++) {
+            buffer.put(biome);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns a little-endian NBT compound naming a block state.
+     */
+    private static byte[] paletteEntry(int blockId) {
+        byte[] name = ("minecraft:block_" + blockId).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(3 + 9 + name.length + 14 + 1).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 10).putShort((short) 0);
+        buffer.put((byte) 8).putShort((short) 4).put("name".getBytes(StandardCharsets.UTF_8))
+                .putShort((short) name.length).put(name);
+        buffer.put((byte) 3).putShort((short) 7).put("version".getBytes(StandardCharsets.UTF_8))
+                .putInt(17959425);
+        buffer.put((byte) 0);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.WriteBatch;
+import org.nukkit.leveldb.BedrockDBFactory;
+import org.nukkit.leveldb.ExtendedCompressionType;
+import org.nukkit.leveldb.ExtendedOptions;
+import org.nukkit.leveldb.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * End to end load generator in the manner of LevelDB's db_bench. Run it with
+ * {@code java -cp target/benchmarks.jar org.nukkit.leveldb.benchmark.DbBench --help}.
+ * <p>
+ * The operations of each benchmark are split among the threads. Every operation is timed
+ * and the report gives the throughput and the latency percentiles, interpolated within the
+ * buckets of a {@link LatencyHistogram}.
+ */
+public final class DbBench {
+    private static final String BENCHMARKS = "fillseq,fillrandom,overwrite,readrandom,readseq,readwhilewriting,seekrandom,chunksave";
+    private static final String USAGE = "Usage: DbBench [--flag=value]...\n"
+            + "  --benchmarks=name,...   comma separated, from " + BENCHMARKS + "\n"
+            + "                          (default: all of them)\n"
+            + "  --num=N                 entries to write (default: 1000000)\n"
+            + "  --reads=N               reads, -1 for --num (default: -1)\n"
+            + "  --threads=N             concurrent threads (default: 1)\n"
+            + "  --value_size=N          value size in bytes (default: 100)\n"
+            + "  --compression_ratio=R   fraction of the values left by compression (default: 0.5)\n"
+            + "  --compression=TYPE      NONE, SNAPPY, ZLIB or ZLIB_RAW (default: ZLIB_RAW)\n"
+            + "  --mmap=true|false       read tables through memory mappings (default: leveldb.mmap)\n"
+            + "  --cache_size=N          block cache bytes, -1 for the default (default: -1)\n"
+            + "  --write_buffer_size=N   memtable bytes, -1 for the default (default: -1)\n"
+            + "  --chunk_saves=N         chunk saves of chunksave (default: 10000)\n"
+            + "  --world_radius=N        chunks from the origin to the world border (default: 256)\n"
+            + "  --db=PATH               database directory (default: <tmpdir>/dbbench)\n"
+            + "\n"
+            + "fillseq, fillrandom and chunksave start from an empty database, the other\n"
+            + "benchmarks run against the database left by the previous ones. chunksave saves\n"
+            + "the version, 2D data and 16 subchunks of chunks around players wandering the\n"
+            + "world, overwriting the chunks near them again and again like a server does.";
+
+    private static final int KEY_SIZE = 16;
+    private static final int VIEW_DISTANCE = 8;
+    private static final int VALUE_POOL_SIZE = 1048576;
+    private static final int SUB_CHUNK_POOL_SIZE = 256;
+
+    private List<String> benchmarks = Arrays.asList(BENCHMARKS.split(","));
+    private int num = 1000000;
+    private int reads = -1;
+    private int threads = 1;
+    private int valueSize = 100;
+    private double compressionRatio = 0.5;
+    private ExtendedCompressionType compressionType = ExtendedCompressionType.ZLIB_RAW;
+    private long cacheSize = -1;
+    private int writeBufferSize = -1;
+    private int chunkSaves = 10000;
+    private int worldRadius = 256;
+    private File databaseDir = new File(System.getProperty("java.io.tmpdir"), "dbbench");
+
+    private DB db;
+    // benchmarks run so far; each draws its own random keys
+    private int runs;
+    private byte[] valuePool;
+    private byte[][] subChunks;
+    private byte[][] data2D;
+
+    public static void main(String[] args) throws Exception {
+        DbBench bench = new DbBench();
+        try {
+            for (String arg : args) {
+                bench.parseFlag(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        bench.run();
+    }
+
+    private void parseFlag(String arg) {
+        if (arg.equals("--help")) {
+            System.out.println(USAGE);
+            System.exit(0);
+        }
+        int separator = arg.indexOf('=');
+        if (!arg.startsWith("--") || separator < 0) {
+            throw new IllegalArgumentException("Invalid flag: " + arg);
+        }
+        String name = arg.substring(2, separator);
+        String value = arg.substring(separator + 1);
+        try {
+            switch (name) {
+                case "benchmarks":
+                    benchmarks = Arrays.asList(value.split(","));
+                    for (String benchmark : benchmarks) {
+                        if (!Arrays.asList(BENCHMARKS.split(",")).contains(benchmark)) {
+                            throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+                        }
+                    }
+                    break;
+                case "num":
+                    num = Integer.parseInt(value);
+                    break;
+                case "reads":
+                    reads = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "value_size":
+                    valueSize = Integer.parseInt(value);
+                    break;
+                case "compression_ratio":
+                    compressionRatio = Double.parseDouble(value);
+                    break;
+                case "compression":
+                    compressionType = ExtendedCompressionType.valueOf(value.toUpperCase());
+                    break;
+                case "mmap":
+                    // read once, when the database factory is loaded
+                    System.setProperty("leveldb.mmap", String.valueOf(Boolean.parseBoolean(value)));
+                    break;
+                case "cache_size":
+                    cacheSize = Long.parseLong(value);
+                    break;
+                case "write_buffer_size":
+                    writeBufferSize = Integer.parseInt(value);
+                    break;
+                case "chunk_saves":
+                    chunkSaves = Integer.parseInt(value);
+                    break;
+                case "world_radius":
+                    worldRadius = Integer.parseInt(value);
+                    break;
+                case "db":
+                    databaseDir = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown flag: " + arg);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value: " + arg);
+        }
+        if (num <= 0 || threads <= 0 || valueSize <= 0 || valueSize > VALUE_POOL_SIZE || chunkSaves <= 0 || worldRadius <= VIEW_DISTANCE
+                || !(compressionRatio > 0 && compressionRatio <= 1)) {
+            throw new IllegalArgumentException("Out of range: " + arg);
+        }
+    }
+
+    private void run() throws Exception {
+        if (reads < 0) {
+            reads = num;
+        }
+        printHeader();
+        valuePool = compressibleBytes(new Random(301), VALUE_POOL_SIZE);
+        ChunkData chunkData = new ChunkData(301);
+        subChunks = new byte[SUB_CHUNK_POOL_SIZE][];
+        for (int i = 0; i < subChunks.length; i++) {
+            subChunks[i] = chunkData.subChunk();
+        }
+        data2D = new byte[SUB_CHUNK_POOL_SIZE / 4][];
+        for (int i = 0; i < data2D.length; i++) {
+            data2D[i] = chunkData.data2D();
+        }
+
+        try {
+            for (String benchmark : benchmarks) {
+                if (benchmark.equals("fillseq") || benchmark.equals("fillrandom") || benchmark.equals("chunksave")) {
+                    reopen(true);
+                } else if (db == null) {
+                    reopen(false);
+                }
+                runBenchmark(benchmark);
+            }
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private void printHeader() {
+        System.out.printf("Keys:        %d bytes each%n", KEY_SIZE);
+        System.out.printf("Values:      %d bytes each (%d bytes after compression)%n", valueSize, (int) (valueSize * compressionRatio));
+        System.out.printf("Entries:     %d%n", num);
+        System.out.printf("Reads:       %d%n", reads < 0 ? num : reads);
+        System.out.printf("Threads:     %d%n", threads);
+        System.out.printf("Compression: %s%n", compressionType);
+        System.out.printf("Mmap:        %s%n", BedrockDBFactory.USE_MMAP);
+        System.out.printf("Database:    %s%n", databaseDir.getAbsolutePath());
+        System.out.println("------------------------------------------------");
+    }
+
+    private void reopen(boolean fresh) throws IOException {
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+        ExtendedOptions options = new ExtendedOptions();
+        options.createIfMissing(true);
+        options.extendedCompressionType(compressionType);
+        if (cacheSize >= 0) {
+            options.cacheSize(cacheSize);
+        }
+        if (writeBufferSize > 0) {
+            options.writeBufferSize(writeBufferSize);
+        }
+        if (fresh) {
+            BedrockDBFactory.factory.destroy(databaseDir, options);
+        }
+        db = BedrockDBFactory.factory.open(databaseDir, options);
+    }
+
+    private void runBenchmark(String benchmark) throws Exception {
+        LatencyHistogram latencies = new LatencyHistogram();
+        long seed = 1000L * ++runs;
+        List<ThreadState> states = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            states.add(new ThreadState(i, seed + i, latencies));
+        }
+
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (ThreadState state : states) {
+            workers.add(new Thread(() -> {
+                try {
+                    runOperations(benchmark, state);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "dbbench-" + state.index));
+        }
+
+        // readwhilewriting measures the readers while one more thread overwrites entries
+        Thread writer = null;
+        if (benchmark.equals("readwhilewriting")) {
+            ThreadState writerState = new ThreadState(threads, seed + threads, new LatencyHistogram());
+            writer = new Thread(() -> {
+                try {
+                    while (done.getCount() > 0) {
+                        db.put(key(writerState.random.nextInt(num)), writerState.value());
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "dbbench-writer");
+            writer.start();
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        if (writer != null) {
+            writer.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(benchmark + " failed", failure.get());
+        }
+
+        long ops = 0;
+        long bytes = 0;
+        long found = 0;
+        for (ThreadState state : states) {
+            ops += state.ops;
+            bytes += state.bytes;
+            found += state.found;
+        }
+        report(benchmark, elapsed, ops, bytes, found, latencies);
+    }
+
+    private void runOperations(String benchmark, ThreadState state) throws IOException {
+        int writes = share(num, state.index);
+        int readOps = share(reads, state.index);
+        switch (benchmark) {
+            case "fillseq":
+                long first = (long) num * state.index / threads;
+                for (int i = 0; i < writes; i++) {
+                    write(state, (int) (first + i));
+                }
+                break;
+            case "fillrandom":
+            case "overwrite":
+                for (int i = 0; i < writes; i++) {
+                    write(state, state.random.nextInt(num));
+                }
+                break;
+            case "readrandom":
+            case "readwhilewriting":
+                for (int i = 0; i < readOps; i++) {
+                    long start = System.nanoTime();
+                    byte[] value = db.get(key(state.random.nextInt(num)));
+                    state.finishedOp(start, value != null ? KEY_SIZE + value.length : 0, value != null);
+                }
+                break;
+            case "readseq":
+                try (DBIterator iterator = db.iterator()) {
+                    iterator.seekToFirst();
+                    for (int i = 0; i < readOps && iterator.hasNext(); i++) {
+                        long start = System.nanoTime();
+                        byte[] value = iterator.next().getValue();
+                        state.finishedOp(start, KEY_SIZE + value.length, true);
+                    }
+                }
+                break;
+            case "seekrandom":
+                for (int i = 0; i < readOps; i++) {
+                    long start = System.nanoTime();
+                    boolean hit;
+                    try (DBIterator iterator = db.iterator()) {
+                        iterator.seek(key(state.random.nextInt(num)));
+                        hit = iterator.hasNext();
+                    }
+                    state.finishedOp(start, 0, hit);
+                }
+                break;
+            case "chunksave":
+                chunkSaves(state, share(chunkSaves, state.index));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+        }
+    }
+
+    private void write(ThreadState state, int key) {
+        byte[] value = state.value();
+        long start = System.nanoTime();
+        db.put(key(key), value);
+        state.finishedOp(start, KEY_SIZE + valueSize, true);
+    }
+
+    /**
+     * Saves the chunks in view of a player walking across the world, one chunk per operation.
+     */
+    private void chunkSaves(ThreadState state, int saves) throws IOException {
+        Random random = state.random;
+        int playerX = random.nextInt(2 * worldRadius) - worldRadius;
+        int playerZ = random.nextInt(2 * worldRadius) - worldRadius;
+        for (int i = 0; i < saves; i++) {
+            if (random.nextInt(16) == 0) {
+                playerX = clamp(playerX + random.nextInt(3) - 1, worldRadius - VIEW_DISTANCE);
+                playerZ = clamp(playerZ + random.nextInt(3) - 1, worldRadius - VIEW_DISTANCE);
+            }
+            int x = playerX + random.nextInt(2 * VIEW_DISTANCE + 1) - VIEW_DISTANCE;
+            int z = playerZ + random.nextInt(2 * VIEW_DISTANCE + 1) - VIEW_DISTANCE;
+
+            long bytes = 0;
+            long start = System.nanoTime();
+            try (WriteBatch batch = db.createWriteBatch()) {
+                byte[] value = data2D[random.nextInt(data2D.length)];
+                batch.put(ChunkData.key(x, z, ChunkData.VERSION), new byte[]{40});
+                batch.put(ChunkData.key(x, z, ChunkData.DATA_2D), value);
+                bytes += 9 + 1 + 9 + value.length;
+                for (int subChunk = 0; subChunk < ChunkData.SUB_CHUNKS; subChunk++) {
+                    value = subChunks[random.nextInt(subChunks.length)];
+                    batch.put(ChunkData.subChunkKey(x, z, subChunk), value);
+                    bytes += 10 + value.length;
+                }
+                db.write(batch);
+            }
+            state.finishedOp(start, bytes, true);
+        }
+    }
+
+    private void report(String benchmark, long elapsedNanos, long ops, long bytes, long found, LatencyHistogram latencies) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder message = new StringBuilder();
+        message.append(String.format("%-16s : %11.3f micros/op; %10.0f ops/sec;", benchmark,
+                ops == 0 ? 0 : latencies.getTotalNanos() / 1e3 / ops, ops / seconds));
+        if (bytes > 0) {
+            message.append(String.format(" %7.1f MB/s;", bytes / 1048576.0 / seconds));
+        }
+        message.append(String.format(" p50 %s p99 %s p999 %s micros",
+                micros(latencies.getPercentileNanos(50)),
+                micros(latencies.getPercentileNanos(99)),
+                micros(latencies.getPercentileNanos(99.9))));
+        if (found != ops) {
+            message.append(String.format(" (%d of %d found)", found, ops));
+        }
+        System.out.println(message);
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1e3);
+    }
+
+    private int share(int total, int thread) {
+        return (int) ((long) total * (thread + 1) / threads - (long) total * thread / threads);
+    }
+
+    private static int clamp(int value, int limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+
+    private static byte[] key(int index) {
+        return String.format("%016d", index).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns bytes that compress to about {@code compressionRatio} of their size: runs of
+     * random bytes, each repeated to fill a 100 byte piece.
+     */
+    private byte[] compressibleBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        int pieceSize = 100;
+        int randomSize = Math.max(1, (int) (pieceSize * compressionRatio));
+        byte[] piece = new byte[randomSize];
+        for (int offset = 0; offset < length; offset += pieceSize) {
+            random.nextBytes(piece);
+            for (int i = 0; i < pieceSize && offset + i < length; i++) {
+                bytes[offset + i] = piece[i % randomSize];
+            }
+        }
+        return bytes;
+    }
+
+    private final class ThreadState {
+        private final int index;
+        private final Random random;
+        private final LatencyHistogram latencies;
+        private int valuePosition;
+        private long ops;
+        private long bytes;
+        private long found;
+
+        private ThreadState(int index, long seed, LatencyHistogram latencies) {
+            this.index = index;
+            this.random = new Random(seed);
+            this.latencies = latencies;
+            this.valuePosition = random.nextInt(VALUE_POOL_SIZE);
+        }
+
+        private byte[] value() {
+            if (valuePosition + valueSize > VALUE_POOL_SIZE) {
+                valuePosition = 0;
+            }
+            byte[] value = Arrays.copyOfRange(valuePool, valuePosition, valuePosition + valueSize);
+            valuePosition += valueSize;
+            return value;
+        }
+
+        private void finishedOp(long start, long bytes, boolean found) {
+            latencies.record(System.nanoTime() - start);
+            ops++;
+            this.bytes += bytes;
+            if (found) {
+                this.found++;
+            }
+        }
+    }
+}
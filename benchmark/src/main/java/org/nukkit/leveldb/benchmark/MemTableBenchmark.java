@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.impl.InternalKeyComparator;
+import org.iq80.leveldb.impl.LookupKey;
+import org.iq80.leveldb.impl.LookupResult;
+import org.iq80.leveldb.impl.MemTable;
+import org.iq80.leveldb.impl.ValueType;
+import org.iq80.leveldb.table.BytewiseComparator;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+import org.nukkit.leveldb.MemTableFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the memtable representations on a chunk save workload: the subchunks of a few
+ * thousand chunks are overwritten again and again, and looked up by chunk loads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MemTableBenchmark {
+
+    private static final int SUB_CHUNKS = ChunkData.SUB_CHUNKS;
+    private static final int WRITE_BUFFER_SIZE = 4 << 20;
+
+    @Param({"SKIP_LIST", "HASH_BUCKETED", "OFF_HEAP"})
+    public String memTable;
+
+    @Param({"4096"})
+    public int chunks;
+
+    @Param({"512"})
+    public int valueSize;
+
+    private MemTableFactory factory;
+    private InternalKeyComparator comparator;
+    private Slice[] keys;
+    private Slice value;
+    private MemTable readTable;
+    private MemTable writeTable;
+    private long sequence;
+    private Random random;
+
+    @Setup
+    public void setup() {
+        switch (memTable) {
+            case "SKIP_LIST":
+                factory = MemTableFactory.SKIP_LIST;
+                break;
+            case "HASH_BUCKETED":
+                factory = MemTableFactory.hashBucketed(8);
+                break;
+            case "OFF_HEAP":
+                factory = MemTableFactory.OFF_HEAP;
+                break;
+            default:
+                throw new IllegalArgumentException(memTable);
+        }
+        comparator = new InternalKeyComparator(new BytewiseComparator());
+        random = new Random(0);
+
+        keys = new Slice[chunks * SUB_CHUNKS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Slices.wrappedBuffer(ChunkData.subChunkKey(i / SUB_CHUNKS, i % SUB_CHUNKS));
+        }
+        byte[] bytes = new byte[valueSize];
+        random.nextBytes(bytes);
+        value = Slices.wrappedBuffer(bytes);
+
+        // a write buffer holding a few saves of every chunk
+        readTable = factory.newMemTable(comparator);
+        while (readTable.approximateMemoryUsage() < WRITE_BUFFER_SIZE) {
+            saveChunk(readTable, random.nextInt(chunks));
+        }
+        writeTable = factory.newMemTable(comparator);
+    }
+
+    @Benchmark
+    public long saveChunk() {
+        if (writeTable.approximateMemoryUsage() >= WRITE_BUFFER_SIZE) {
+            writeTable = factory.newMemTable(comparator);
+        }
+        saveChunk(writeTable, random.nextInt(chunks));
+        return sequence;
+    }
+
+    @Benchmark
+    public LookupResult get() {
+        return readTable.get(new LookupKey(keys[random.nextInt(keys.length)], sequence));
+    }
+
+    private void saveChunk(MemTable table, int chunk) {
+        for (int subChunk = 0; subChunk < SUB_CHUNKS; subChunk++) {
+            table.add(++sequence, ValueType.VALUE, keys[chunk * SUB_CHUNKS + subChunk], value);
+        }
+    }
+}
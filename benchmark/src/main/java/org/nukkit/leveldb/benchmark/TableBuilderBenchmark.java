@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.table.BytewiseComparator;
+import org.iq80.leveldb.table.ExtendedTableBuilder;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Snappy;
+import org.nukkit.leveldb.ExtendedCompressionType;
+import org.nukkit.leveldb.ExtendedOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing a table of {@code chunks} chunks with each compression type, as flushes
+ * and compactions do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TableBuilderBenchmark {
+
+    @Param({"NONE", "SNAPPY", "ZLIB", "ZLIB_RAW"})
+    public ExtendedCompressionType compressionType;
+
+    @Param({"256"})
+    public int chunks;
+
+    private Map<Slice, Slice> records;
+    private ExtendedOptions options;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+
+    @Setup
+    public void setup() throws IOException {
+        if (compressionType == ExtendedCompressionType.SNAPPY && !Snappy.available()) {
+            throw new IllegalStateException("Snappy is not available");
+        }
+        records = new ChunkData(0).sortedChunks(chunks);
+        options = new ExtendedOptions();
+        options.extendedCompressionType(compressionType);
+        file = File.createTempFile("leveldb-benchmark", ".ldb");
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        fileChannel = randomAccessFile.getChannel();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long build() throws IOException {
+        fileChannel.truncate(0);
+        ExtendedTableBuilder builder = new ExtendedTableBuilder(options, fileChannel, new BytewiseComparator());
+        for (Map.Entry<Slice, Slice> record : records.entrySet()) {
+            builder.add(record.getKey(), record.getValue());
+        }
+        builder.finish();
+        return builder.getFileSize();
+    }
+}
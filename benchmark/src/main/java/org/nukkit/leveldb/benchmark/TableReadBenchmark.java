@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.table.BytewiseComparator;
+import org.iq80.leveldb.table.ExtendedFileChannelTable;
+import org.iq80.leveldb.table.ExtendedMMapTable;
+import org.iq80.leveldb.table.ExtendedTable;
+import org.iq80.leveldb.table.ExtendedTableBuilder;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.TableIterator;
+import org.nukkit.leveldb.ExtendedCompressionType;
+import org.nukkit.leveldb.ExtendedOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a table through a memory mapping against positional file channel reads.
+ * No block cache is used, so every read goes to the file; the file itself stays in the page
+ * cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TableReadBenchmark {
+
+    @Param({"MMAP", "FILE_CHANNEL"})
+    public String table;
+
+    @Param({"ZLIB_RAW", "NONE"})
+    public ExtendedCompressionType compressionType;
+
+    @Param({"1024"})
+    public int chunks;
+
+    private File file;
+    private FileChannel fileChannel;
+    private ExtendedTable extendedTable;
+    private Slice[] keys;
+
+    @Setup
+    public void setup() throws Exception {
+        TreeMap<Slice, Slice> records = new ChunkData(0).sortedChunks(chunks);
+        keys = records.keySet().toArray(new Slice[0]);
+
+        ExtendedOptions options = new ExtendedOptions();
+        options.extendedCompressionType(compressionType);
+        file = File.createTempFile("leveldb-benchmark", ".ldb");
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            ExtendedTableBuilder builder = new ExtendedTableBuilder(options, output.getChannel(), new BytewiseComparator());
+            for (Map.Entry<Slice, Slice> record : records.entrySet()) {
+                builder.add(record.getKey(), record.getValue());
+            }
+            builder.finish();
+        }
+
+        fileChannel = new RandomAccessFile(file, "r").getChannel();
+        switch (table) {
+            case "MMAP":
+                extendedTable = new ExtendedMMapTable(file.getName(), fileChannel, new BytewiseComparator(), false);
+                break;
+            case "FILE_CHANNEL":
+                extendedTable = new ExtendedFileChannelTable(file.getName(), fileChannel, new BytewiseComparator(), false);
+                break;
+            default:
+                throw new IllegalArgumentException(table);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        extendedTable.closer().call();
+        fileChannel.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public Slice get() {
+        TableIterator iterator = extendedTable.iterator();
+        iterator.seek(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+        return iterator.next().getValue();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public long scan() {
+        long bytes = 0;
+        for (TableIterator iterator = extendedTable.iterator(); iterator.hasNext(); ) {
+            bytes += iterator.next().getValue().length();
+        }
+        return bytes;
+    }
+}
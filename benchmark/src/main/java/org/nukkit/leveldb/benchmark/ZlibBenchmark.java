@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nukkit.leveldb.benchmark;
+
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Zlib;
+import org.nukkit.leveldb.ExtendedCompressionType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures deflating and inflating a data block with the zlib formats, from and to heap or
+ * direct buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZlibBenchmark {
+
+    @Param({"ZLIB_RAW", "ZLIB"})
+    public ExtendedCompressionType compressionType;
+
+    @Param({"-1", "1"})
+    public int deflateLevel;
+
+    @Param({"false", "true"})
+    public boolean directBuffers;
+
+    private ByteBuffer raw;
+    private ByteBuffer compressed;
+    private ByteBuffer compressOutput;
+    private ByteBuffer uncompressOutput;
+
+    @Setup
+    public void setup() throws IOException {
+        if (compressionType != ExtendedCompressionType.ZLIB && compressionType != ExtendedCompressionType.ZLIB_RAW) {
+            throw new IllegalArgumentException(compressionType.name());
+        }
+        Slice block = BlockDecompressionBenchmark.buildBlock(4 * 1024);
+        raw = allocate(block.length());
+        raw.put(block.toByteBuffer()).flip();
+        compressOutput = allocate(Zlib.maxCompressedLength(block.length()));
+        uncompressOutput = allocate(block.length());
+
+        compressed = allocate(Zlib.maxCompressedLength(block.length()));
+        compress(raw.duplicate(), compressed);
+        compressed.flip();
+    }
+
+    @Benchmark
+    public int deflate() throws IOException {
+        compressOutput.clear();
+        return compress(raw.duplicate(), compressOutput);
+    }
+
+    @Benchmark
+    public ByteBuffer inflate() throws IOException {
+        uncompressOutput.clear();
+        if (compressionType == ExtendedCompressionType.ZLIB) {
+            return Zlib.uncompress(compressed.duplicate(), uncompressOutput);
+        }
+        return Zlib.uncompressRaw(compressed.duplicate(), uncompressOutput);
+    }
+
+    private int compress(ByteBuffer input, ByteBuffer output) throws IOException {
+        if (compressionType == ExtendedCompressionType.ZLIB) {
+            return Zlib.compress(input, output, deflateLevel);
+        }
+        return Zlib.compressRaw(input, output, deflateLevel);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return directBuffers ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
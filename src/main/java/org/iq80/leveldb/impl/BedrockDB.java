@@ -18,33 +18,54 @@
 
 package org.iq80.leveldb.impl;
 
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.iq80.leveldb.*;
 import org.iq80.leveldb.impl.Filename.FileInfo;
 import org.iq80.leveldb.impl.Filename.FileType;
+import org.iq80.leveldb.table.BlockCache;
 import org.iq80.leveldb.table.BytewiseComparator;
 import org.iq80.leveldb.table.CustomUserComparator;
 import org.iq80.leveldb.table.ExtendedTableBuilder;
 import org.iq80.leveldb.table.UserComparator;
 import org.iq80.leveldb.util.*;
+import org.nukkit.leveldb.CompactRangeListener;
+import org.nukkit.leveldb.DbOperation;
+import org.nukkit.leveldb.EventListener;
 import org.nukkit.leveldb.ExtendedCompressionType;
 import org.nukkit.leveldb.ExtendedFilename;
 import org.nukkit.leveldb.ExtendedOptions;
+import org.nukkit.leveldb.ExtendedReadOptions;
+import org.nukkit.leveldb.LatencyHistogram;
+import org.nukkit.leveldb.WriteStall;
 
 import java.io.*;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 import static org.iq80.leveldb.impl.DbConstants.*;
 import static org.iq80.leveldb.impl.SequenceNumber.MAX_SEQUENCE_NUMBER;
@@ -61,28 +82,76 @@ import static org.iq80.leveldb.util.Slices.writeLengthPrefixedBytes;
  */
 public class BedrockDB implements DB {
 
+    // Size limits of a write group, see buildWriteGroup()
+    private static final int MAX_WRITE_GROUP_SIZE = 1 << 20;
+    private static final int SMALL_WRITE_SIZE = 128 << 10;
+
+    // Files after a compaction pointer that may clash with running compactions before the picker gives up
+    private static final int MAX_CONFLICTING_PICKS = 4;
+    // A compaction pointer before every key, standing for a level without one
+    private static final InternalKey START_OF_KEY_SPACE = new InternalKey(Slices.EMPTY_SLICE, MAX_SEQUENCE_NUMBER, VALUE);
+    private static final long NO_SNAPSHOT = -1;
+
+    // Log records decoded ahead of the memtable inserts, and memtables written at once, during recovery
+    private static final int MAX_RECOVERY_QUEUE_SIZE = 256;
+    private static final int MAX_RECOVERY_FLUSHES = 2;
+
     private final ExtendedOptions options;
     private final File databaseDir;
     private final BedrockTableCache tableCache;
+    private final BlockCache blockCache;
+    private final InternalFilterPolicy filterPolicy;
     private final DbLock dbLock;
     private final VersionSet versions;
 
     private final AtomicBoolean shuttingDown = new AtomicBoolean();
+    private final SnapshotList snapshots = new SnapshotList();
     private final ReentrantLock mutex = new ReentrantLock();
     private final Condition backgroundCondition = mutex.newCondition();
 
     private final List<Long> pendingOutputs = new ArrayList<>(); // todo
 
+    // Queue of writers, the one at the head commits the whole group; guarded by mutex
+    private final Deque<Writer> writers = new ArrayDeque<>();
+
     private LogWriter log;
 
     private MemTable memTable;
     private MemTable immutableMemTable;
 
+    // What point reads go through without taking the mutex; replaced under the mutex
+    private volatile ReadView readView;
+    // Last sequence whose write has been fully applied to the memtable
+    private volatile long visibleSequence;
+
     private final InternalKeyComparator internalKeyComparator;
 
     private volatile Throwable backgroundException;
+    private final ExecutorService flushExecutor;
     private final ExecutorService compactionExecutor;
-    private Future<?> backgroundCompaction;
+    private final ExecutorService rangeCompactionExecutor;
+    private final int maxBackgroundCompactions;
+    private final ExecutorService subcompactionExecutor;
+    private final int maxSubcompactions;
+    private final ExecutorService blockCompressionExecutor;
+    private final ExecutorService readaheadExecutor;
+
+    // data block bytes written to each level since open, before and after compression
+    private final AtomicLongArray uncompressedBytesWritten = new AtomicLongArray(NUM_LEVELS);
+    private final DbStats stats = new DbStats();
+    private final EnumMap<DbOperation, LatencyHistogram> latencies = new EnumMap<>(DbOperation.class);
+    private final EventListener eventListener;
+    private final AtomicLongArray compressedBytesWritten = new AtomicLongArray(NUM_LEVELS);
+
+    // Background work in progress, guarded by mutex
+    private Future<?> backgroundFlush;
+    private final List<RunningCompaction> runningCompactions = new ArrayList<>();
+    private int suspensionCount;
+    // Where the next compaction of each level starts, see pickCompaction()
+    private final Map<Integer, InternalKey> compactPointers = new HashMap<>();
+    // The table whose seeks ran out, see chargeSeek()
+    private FileMetaData fileToCompact;
+    private int fileToCompactLevel;
 
     private ManualCompaction manualCompaction;
 
@@ -108,25 +177,84 @@ public class BedrockDB implements DB {
             userComparator = new BytewiseComparator();
         }
         internalKeyComparator = new InternalKeyComparator(userComparator);
-        memTable = new MemTable(internalKeyComparator);
+        memTable = newMemTable();
+        eventListener = options.eventListener() != null ? options.eventListener() : new EventListener() {
+        };
+        for (DbOperation operation : DbOperation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
         immutableMemTable = null;
 
+        // background tasks record their own errors, anything escaping them stops the database too
+        UncaughtExceptionHandler uncaughtExceptionHandler = new UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                recordBackgroundError(e);
+            }
+        };
+        // Flushes get their own thread, so writers waiting for memtable space
+        // never queue behind a long running level compaction
+        ThreadFactory flushThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("leveldb-flush-%s")
+                .setPriority(Thread.MAX_PRIORITY)
+                .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+                .build();
+        flushExecutor = Executors.newSingleThreadExecutor(flushThreadFactory);
         ThreadFactory compactionThreadFactory = new ThreadFactoryBuilder()
                 .setNameFormat("leveldb-compaction-%s")
-                .setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-                    @Override
-                    public void uncaughtException(Thread t, Throwable e) {
-                        // TODO: implement a real UncaughtExceptionHandler
-                        System.out.printf("%s%n", t);
-                        e.printStackTrace();
-                    }
-                })
+                .setUncaughtExceptionHandler(uncaughtExceptionHandler)
                 .build();
-        compactionExecutor = Executors.newSingleThreadExecutor(compactionThreadFactory);
+        maxBackgroundCompactions = options.maxBackgroundCompactions();
+        compactionExecutor = Executors.newFixedThreadPool(maxBackgroundCompactions, compactionThreadFactory);
+        ThreadFactory rangeCompactionThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("leveldb-compact-range-%s")
+                .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+                .build();
+        rangeCompactionExecutor = Executors.newSingleThreadExecutor(rangeCompactionThreadFactory);
+        maxSubcompactions = options.maxSubcompactions();
+        if (maxSubcompactions > 1) {
+            ThreadFactory subcompactionThreadFactory = new ThreadFactoryBuilder()
+                    .setNameFormat("leveldb-subcompaction-%s")
+                    .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+                    .build();
+            subcompactionExecutor = Executors.newCachedThreadPool(subcompactionThreadFactory);
+        } else {
+            subcompactionExecutor = null;
+        }
+        if (options.compressionThreads() > 1) {
+            ThreadFactory blockCompressionThreadFactory = new ThreadFactoryBuilder()
+                    .setNameFormat("leveldb-compression-%s")
+                    .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+                    .build();
+            blockCompressionExecutor = Executors.newFixedThreadPool(options.compressionThreads(), blockCompressionThreadFactory);
+        } else {
+            blockCompressionExecutor = null;
+        }
+        // threads only start once an iterator reads ahead
+        ThreadFactory readaheadThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("leveldb-readahead-%s")
+                .setUncaughtExceptionHandler(uncaughtExceptionHandler)
+                .build();
+        readaheadExecutor = Executors.newFixedThreadPool(options.readaheadThreads(), readaheadThreadFactory);
+
+        // Cache uncompressed data blocks if requested
+        if (options.cacheSize() > 0) {
+            blockCache = new BlockCache(options.cacheSize());
+        } else {
+            blockCache = null;
+        }
+
+        // Tables store internal keys, so filters are built and probed on their user key part
+        if (options.filterPolicy() != null) {
+            filterPolicy = new InternalFilterPolicy(options.filterPolicy());
+        } else {
+            filterPolicy = null;
+        }
 
         // Reserve ten files or so for other uses and give the rest to TableCache.
         int tableCacheSize = options.maxOpenFiles() - 10;
-        tableCache = new BedrockTableCache(databaseDir, tableCacheSize, new InternalUserComparator(internalKeyComparator), options.verifyChecksums());
+        tableCache = new BedrockTableCache(databaseDir, tableCacheSize, new InternalUserComparator(internalKeyComparator), options.verifyChecksums(),
+                blockCache, filterPolicy);
 
         // create the version set
 
@@ -152,6 +280,7 @@ public class BedrockDB implements DB {
 
             // load  (and recover) current version
             versions.recover();
+            recoverCompactPointers();
 
             // Recover from all newer log files than the ones named in the
             // descriptor (new log files may have been added by the previous
@@ -178,8 +307,8 @@ public class BedrockDB implements DB {
             // Recover in the order in which the logs were generated
             VersionEdit edit = new VersionEdit();
             Collections.sort(logs);
-            for (Long fileNumber : logs) {
-                long maxSequence = recoverLogFile(fileNumber, edit);
+            if (!logs.isEmpty()) {
+                long maxSequence = recoverLogFiles(logs, edit);
                 if (versions.getLastSequence() < maxSequence) {
                     versions.setLastSequence(maxSequence);
                 }
@@ -192,17 +321,59 @@ public class BedrockDB implements DB {
 
             // apply recovered edits
             versions.logAndApply(edit);
+            visibleSequence = versions.getLastSequence();
+            installReadView();
 
             // cleanup unused files
             deleteObsoleteFiles();
 
             // schedule compactions
             maybeScheduleCompaction();
+        } catch (Throwable e) {
+            abandon();
+            throw e;
         } finally {
             mutex.unlock();
         }
     }
 
+    /**
+     * Releases what the constructor acquired before it failed. Only the recovery ran on the
+     * background threads, and it waited for them, so they are stopped without waiting.
+     */
+    private void abandon() {
+        shuttingDown.set(true);
+        flushExecutor.shutdownNow();
+        compactionExecutor.shutdownNow();
+        rangeCompactionExecutor.shutdownNow();
+        if (subcompactionExecutor != null) {
+            subcompactionExecutor.shutdownNow();
+        }
+        if (blockCompressionExecutor != null) {
+            blockCompressionExecutor.shutdownNow();
+        }
+        readaheadExecutor.shutdownNow();
+        if (readView != null) {
+            readView.release();
+        }
+        if (versions != null) {
+            try {
+                versions.destroy();
+            } catch (IOException ignored) {
+            }
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException ignored) {
+            }
+        }
+        tableCache.close();
+        if (dbLock != null) {
+            dbLock.release();
+        }
+    }
+
     @Override
     public void close() {
         if (shuttingDown.getAndSet(true)) {
@@ -211,19 +382,38 @@ public class BedrockDB implements DB {
 
         mutex.lock();
         try {
-            while (backgroundCompaction != null) {
+            // wake up range compactions waiting for their turn
+            backgroundCondition.signalAll();
+            while (backgroundFlush != null || !runningCompactions.isEmpty()) {
                 backgroundCondition.awaitUninterruptibly();
             }
         } finally {
             mutex.unlock();
         }
 
+        flushExecutor.shutdown();
         compactionExecutor.shutdown();
+        rangeCompactionExecutor.shutdown();
+        if (subcompactionExecutor != null) {
+            subcompactionExecutor.shutdown();
+        }
+        if (blockCompressionExecutor != null) {
+            // table builders wait for their blocks, so nothing is left to compress
+            blockCompressionExecutor.shutdown();
+        }
+        // iterators left open read in place from now on
+        readaheadExecutor.shutdown();
         try {
+            flushExecutor.awaitTermination(1, TimeUnit.DAYS);
             compactionExecutor.awaitTermination(1, TimeUnit.DAYS);
+            rangeCompactionExecutor.awaitTermination(1, TimeUnit.DAYS);
+            if (subcompactionExecutor != null) {
+                subcompactionExecutor.awaitTermination(1, TimeUnit.DAYS);
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        readView.release();
         try {
             versions.destroy();
         } catch (IOException ignored) {
@@ -236,10 +426,135 @@ public class BedrockDB implements DB {
         dbLock.release();
     }
 
+    /**
+     * Returns how many times larger the data blocks written to {@code level} since the database
+     * was opened are than their stored form, or {@link Double#NaN} if none were written.
+     * Tables written by memtable flushes count toward level 0.
+     */
+    public double getCompressionRatio(int level) {
+        checkArgument(level >= 0 && level < NUM_LEVELS, "Invalid level %s", level);
+        long compressed = compressedBytesWritten.get(level);
+        if (compressed == 0) {
+            return Double.NaN;
+        }
+        return (double) uncompressedBytesWritten.get(level) / compressed;
+    }
+
+    /**
+     * Returns the value of a property, or {@code null} for unknown ones. Besides the
+     * properties of LevelDB, {@code leveldb.num-files-at-level<N>}, {@code leveldb.stats},
+     * {@code leveldb.sstables} and {@code leveldb.approximate-memory-usage}, the stats
+     * include write stalls, compression ratios and the block cache hit ratio. Reading a
+     * property takes no lock, so it can be polled often.
+     */
     @Override
     public String getProperty(String name) {
         checkBackgroundException();
-        return null;
+        requireNonNull(name, "name is null");
+        if (!name.startsWith("leveldb.")) {
+            return null;
+        }
+        String property = name.substring("leveldb.".length());
+
+        ReadView view = acquireReadView();
+        try {
+            Version version = view.version;
+            if (property.startsWith("num-files-at-level")) {
+                int level;
+                try {
+                    level = Integer.parseInt(property.substring("num-files-at-level".length()));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (level < 0 || level >= version.numberOfLevels()) {
+                    return null;
+                }
+                return String.valueOf(version.getFiles(level).size());
+            } else if (property.equals("stats")) {
+                return getStats(version);
+            } else if (property.equals("sstables")) {
+                StringBuilder sstables = new StringBuilder();
+                for (int level = 0; level < version.numberOfLevels(); level++) {
+                    sstables.append("--- level ").append(level).append(" ---\n");
+                    for (FileMetaData file : version.getFiles(level)) {
+                        sstables.append(' ').append(file.getNumber())
+                                .append(':').append(file.getFileSize())
+                                .append('[').append(describe(file.getSmallest()))
+                                .append(" .. ").append(describe(file.getLargest()))
+                                .append("]\n");
+                    }
+                }
+                return sstables.toString();
+            } else if (property.equals("approximate-memory-usage")) {
+                long usage = view.memTable.approximateMemoryUsage();
+                if (view.immutableMemTable != null) {
+                    usage += view.immutableMemTable.approximateMemoryUsage();
+                }
+                if (blockCache != null) {
+                    usage += blockCache.getUsage();
+                }
+                return String.valueOf(usage);
+            }
+            return null;
+        } finally {
+            view.release();
+        }
+    }
+
+    /**
+     * Formats an internal key like LevelDB does, with the non-printable bytes of the user
+     * key escaped.
+     */
+    private static String describe(InternalKey key) {
+        StringBuilder out = new StringBuilder("'");
+        Slice userKey = key.getUserKey();
+        for (int i = 0; i < userKey.length(); i++) {
+            int b = userKey.getUnsignedByte(i);
+            if (b >= ' ' && b <= '~') {
+                out.append((char) b);
+            } else {
+                out.append(String.format("\\x%02x", b));
+            }
+        }
+        return out.append("' @ ").append(key.getSequenceNumber())
+                .append(" : ").append(key.getValueType().getPersistentId())
+                .toString();
+    }
+
+    private String getStats(Version version) {
+        StringBuilder out = new StringBuilder();
+        out.append("                               Compactions\n");
+        out.append("Level  Files Size(MB) Time(sec) Read(MB) Write(MB)  Count  Ratio\n");
+        out.append("-----------------------------------------------------------------\n");
+        for (int level = 0; level < version.numberOfLevels(); level++) {
+            List<FileMetaData> files = version.getFiles(level);
+            if (files.isEmpty() && stats.getCompactions(level) == 0) {
+                continue;
+            }
+            long size = 0;
+            for (FileMetaData file : files) {
+                size += file.getFileSize();
+            }
+            out.append(String.format("%3d %8d %8.0f %9.0f %8.0f %9.0f %6d %6.2f%n",
+                    level,
+                    files.size(),
+                    size / 1048576.0,
+                    stats.getCompactionMicros(level) / 1e6,
+                    stats.getBytesRead(level) / 1048576.0,
+                    stats.getBytesWritten(level) / 1048576.0,
+                    stats.getCompactions(level),
+                    getCompressionRatio(level)));
+        }
+
+        out.append(String.format("Write stalls: level0 slowdown %d (%.3f sec), memtable full %d (%.3f sec), level0 stop %d (%.3f sec)%n",
+                stats.getStalls(WriteStall.LEVEL0_SLOWDOWN), stats.getStallMicros(WriteStall.LEVEL0_SLOWDOWN) / 1e6,
+                stats.getStalls(WriteStall.MEMTABLE_FULL), stats.getStallMicros(WriteStall.MEMTABLE_FULL) / 1e6,
+                stats.getStalls(WriteStall.LEVEL0_STOP), stats.getStallMicros(WriteStall.LEVEL0_STOP) / 1e6));
+        if (blockCache != null) {
+            out.append(String.format("Block cache: %.1f of %.1f MB, hit ratio %.3f%n",
+                    blockCache.getUsage() / 1048576.0, blockCache.getCapacity() / 1048576.0, blockCache.getHitRate()));
+        }
+        return out.toString();
     }
 
     private void deleteObsoleteFiles() {
@@ -291,7 +606,9 @@ public class BedrockDB implements DB {
 //                Log(options_.info_log, "Delete type=%d #%lld\n",
 //                int(type),
 //                        static_cast < unsigned long long>(number));
-                file.delete();
+                if (file.delete()) {
+                    eventListener.fileDeleted(number, fileInfo.getFileType());
+                }
             }
         }
     }
@@ -299,14 +616,17 @@ public class BedrockDB implements DB {
     public void flushMemTable() {
         mutex.lock();
         try {
-            // force compaction
-            makeRoomForWrite(true);
+            // force compaction, queued behind pending writes as they may be using the memtable
+            write(new Writer(null, false, mutex.newCondition()));
 
-            // todo bg_error code
-            while (immutableMemTable != null) {
+            // no flush is scheduled once the database shuts down
+            while (immutableMemTable != null && !shuttingDown.get()) {
+                checkBackgroundException();
                 backgroundCondition.awaitUninterruptibly();
             }
-
+            if (immutableMemTable != null) {
+                throw new DbImpl.DatabaseShutdownException("DB shutdown during memtable flush");
+            }
         } finally {
             mutex.unlock();
         }
@@ -320,7 +640,7 @@ public class BedrockDB implements DB {
 
         mutex.lock();
         try {
-            while (this.manualCompaction != null) {
+            while (this.manualCompaction != null && !shuttingDown.get()) {
                 backgroundCondition.awaitUninterruptibly();
             }
             ManualCompaction manualCompaction = new ManualCompaction(level, start, end);
@@ -328,9 +648,12 @@ public class BedrockDB implements DB {
 
             maybeScheduleCompaction();
 
-            while (this.manualCompaction == manualCompaction) {
+            while (this.manualCompaction == manualCompaction && !shuttingDown.get()) {
                 backgroundCondition.awaitUninterruptibly();
             }
+            if (shuttingDown.get()) {
+                throw new DbImpl.DatabaseShutdownException("DB shutdown during compaction");
+            }
         } finally {
             mutex.unlock();
         }
@@ -340,29 +663,188 @@ public class BedrockDB implements DB {
     private void maybeScheduleCompaction() {
         checkState(mutex.isHeldByCurrentThread());
 
-        if (backgroundCompaction != null) {
-            // Already scheduled
-        } else if (shuttingDown.get()) {
+        if (shuttingDown.get()) {
             // DB is being shutdown; no more background compactions
-        } else if (immutableMemTable == null &&
-                manualCompaction == null &&
-                !versions.needsCompaction()) {
-            // No work to be done
-        } else {
-            backgroundCompaction = compactionExecutor.submit(new Callable<Void>() {
+            return;
+        }
+        if (suspensionCount > 0) {
+            // Compactions are suspended
+            return;
+        }
+
+        if (immutableMemTable != null && backgroundFlush == null) {
+            backgroundFlush = flushExecutor.submit(new Callable<Void>() {
                 @Override
                 public Void call()
                         throws Exception {
                     try {
-                        backgroundCall();
+                        backgroundFlushCall();
                     } catch (DbImpl.DatabaseShutdownException ignored) {
                     } catch (Throwable e) {
-                        backgroundException = e;
+                        recordBackgroundError(e);
                     }
                     return null;
                 }
             });
         }
+
+        if (manualCompaction != null) {
+            // A manual compaction runs alone, once the automatic ones are done
+            if (!manualCompaction.scheduled && runningCompactions.isEmpty()) {
+                manualCompaction.scheduled = true;
+                Compaction compaction = versions.compactRange(manualCompaction.level,
+                        new InternalKey(manualCompaction.begin, MAX_SEQUENCE_NUMBER, VALUE),
+                        new InternalKey(manualCompaction.end, 0, DELETION));
+                if (compaction == null) {
+                    // Nothing to compact in the range
+                    manualCompaction = null;
+                    backgroundCondition.signalAll();
+                } else {
+                    compactPointers.put(manualCompaction.level, compaction.getEdit().getCompactPointers().get(manualCompaction.level));
+                    scheduleCompaction(new RunningCompaction(compaction, true));
+                }
+            }
+            return;
+        }
+
+        while (runningCompactions.size() < maxBackgroundCompactions) {
+            RunningCompaction running = pickCompaction();
+            if (running == null) {
+                break;
+            }
+            scheduleCompaction(running);
+        }
+    }
+
+    /**
+     * Picks a compaction that can run next to the running ones, preferring, as
+     * {@link VersionSet#pickCompaction()} does, the level with the highest score, from the
+     * first file after its compaction pointer, over the file the seek statistics asked for.
+     * Files clashing with running compactions are skipped but keep their turn, the pointer
+     * only moves past a file once it is picked.
+     */
+    private RunningCompaction pickCompaction() {
+        checkState(mutex.isHeldByCurrentThread());
+
+        Version current = versions.getCurrent();
+        if (current.getCompactionScore() >= 1) {
+            int level = current.getCompactionLevel();
+            List<FileMetaData> files = current.getFiles(level);
+            InternalKey pointer = compactPointers.get(level);
+            int first = 0;
+            if (pointer != null) {
+                while (first < files.size() && internalKeyComparator.compare(files.get(first).getLargest(), pointer) <= 0) {
+                    first++;
+                }
+                if (first == files.size()) {
+                    // Wrap-around to the beginning of the key space
+                    first = 0;
+                }
+            }
+            for (int i = 0; i < files.size() && i <= MAX_CONFLICTING_PICKS; i++) {
+                RunningCompaction running = newCompaction(level, files.get((first + i) % files.size()));
+                if (running == null) {
+                    continue;
+                }
+                if (i == 0) {
+                    compactPointers.put(level, running.compaction.getEdit().getCompactPointers().get(level));
+                } else {
+                    // installing this compaction must not move the pointer past the skipped files
+                    running.compaction.getEdit().setCompactPointer(level, pointer != null ? pointer : START_OF_KEY_SPACE);
+                }
+                return running;
+            }
+        }
+
+        if (fileToCompact != null && !current.getFiles(fileToCompactLevel).contains(fileToCompact)) {
+            // compacted meanwhile
+            fileToCompact = null;
+        }
+        if (fileToCompact != null) {
+            RunningCompaction running = newCompaction(fileToCompactLevel, fileToCompact);
+            if (running != null) {
+                compactPointers.put(fileToCompactLevel, running.compaction.getEdit().getCompactPointers().get(fileToCompactLevel));
+                fileToCompact = null;
+                return running;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the compaction of {@code file} into the next level, or {@code null} if it
+     * clashes with a running compaction.
+     */
+    private RunningCompaction newCompaction(int level, FileMetaData file) {
+        // level 0 files may overlap each other, the range picks up all overlapping ones
+        Compaction compaction = versions.compactRange(level, file.getSmallest(), file.getLargest());
+        RunningCompaction running = new RunningCompaction(compaction, false);
+        return conflictsWithRunningCompactions(running) ? null : running;
+    }
+
+    /**
+     * Reads back the compaction pointers recorded in the manifest, which {@link VersionSet}
+     * keeps to itself, so that a reopened database goes on compacting each level where it
+     * stopped.
+     */
+    private void recoverCompactPointers()
+            throws IOException {
+        String currentName = Files.asCharSource(new File(databaseDir, Filename.currentFileName()), UTF_8).read().trim();
+        try (FileInputStream fis = new FileInputStream(new File(databaseDir, currentName));
+             FileChannel channel = fis.getChannel()) {
+            LogReader reader = new LogReader(channel, LogMonitors.throwExceptionMonitor(), true, 0);
+            for (Slice record = reader.readRecord(); record != null; record = reader.readRecord()) {
+                compactPointers.putAll(new VersionEdit(record).getCompactPointers());
+            }
+        }
+    }
+
+    /**
+     * A compaction reads its input levels and rewrites the key range of its inputs in the
+     * output level, so it may only run next to compactions touching other levels or keys.
+     */
+    private boolean conflictsWithRunningCompactions(RunningCompaction candidate) {
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        for (RunningCompaction running : runningCompactions) {
+            if (Math.abs(running.compaction.getLevel() - candidate.compaction.getLevel()) > 1) {
+                continue;
+            }
+            if (userComparator.compare(running.largest, candidate.smallest) >= 0 &&
+                    userComparator.compare(candidate.largest, running.smallest) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleCompaction(final RunningCompaction running) {
+        checkState(mutex.isHeldByCurrentThread());
+
+        runningCompactions.add(running);
+        compactionExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call()
+                    throws Exception {
+                try {
+                    backgroundCompactionCall(running);
+                } catch (DbImpl.DatabaseShutdownException ignored) {
+                } catch (Throwable e) {
+                    recordBackgroundError(e);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Makes {@code e} fail every later write, flush and compaction. Only the first error is
+     * kept, as the later ones are usually caused by it.
+     */
+    private void recordBackgroundError(Throwable e) {
+        if (backgroundException == null) {
+            backgroundException = e;
+        }
+        eventListener.backgroundError(e);
     }
 
     public void checkBackgroundException() {
@@ -372,20 +854,45 @@ public class BedrockDB implements DB {
         }
     }
 
-    private void backgroundCall()
+    private void backgroundFlushCall()
             throws IOException {
         mutex.lock();
         try {
-            if (backgroundCompaction == null) {
-                return;
+            try {
+                if (!shuttingDown.get()) {
+                    compactMemTableInternal();
+                }
+            } finally {
+                backgroundFlush = null;
+            }
+        } finally {
+            try {
+                // The new level-0 file may call for a compaction
+                maybeScheduleCompaction();
+            } finally {
+                try {
+                    backgroundCondition.signalAll();
+                } finally {
+                    mutex.unlock();
+                }
             }
+        }
+    }
 
+    private void backgroundCompactionCall(RunningCompaction running)
+            throws IOException {
+        mutex.lock();
+        try {
             try {
                 if (!shuttingDown.get()) {
-                    backgroundCompaction();
+                    backgroundCompaction(running);
                 }
             } finally {
-                backgroundCompaction = null;
+                runningCompactions.remove(running);
+                if (running.manual) {
+                    // manual compaction complete
+                    manualCompaction = null;
+                }
             }
         } finally {
             try {
@@ -402,109 +909,202 @@ public class BedrockDB implements DB {
         }
     }
 
-    private void backgroundCompaction()
+    private void backgroundCompaction(RunningCompaction running)
             throws IOException {
         checkState(mutex.isHeldByCurrentThread());
 
-        compactMemTableInternal();
-
-        Compaction compaction;
-        if (manualCompaction != null) {
-            compaction = versions.compactRange(manualCompaction.level,
-                    new InternalKey(manualCompaction.begin, MAX_SEQUENCE_NUMBER, VALUE),
-                    new InternalKey(manualCompaction.end, 0, DELETION));
-        } else {
-            compaction = versions.pickCompaction();
-        }
-
-        if (compaction == null) {
-            // no compaction
-        } else if (manualCompaction == null && compaction.isTrivialMove()) {
+        Compaction compaction = running.compaction;
+        if (!running.manual && compaction.isTrivialMove()) {
             // Move file to next level
             checkState(compaction.getLevelInputs().size() == 1);
             FileMetaData fileMetaData = compaction.getLevelInputs().get(0);
             compaction.getEdit().deleteFile(compaction.getLevel(), fileMetaData.getNumber());
             compaction.getEdit().addFile(compaction.getLevel() + 1, fileMetaData);
             versions.logAndApply(compaction.getEdit());
+            installReadView();
             // log
         } else {
             CompactionState compactionState = new CompactionState(compaction);
-            doCompactionWork(compactionState);
-            cleanupCompaction(compactionState);
-        }
-
-        // manual compaction complete
-        if (manualCompaction != null) {
-            manualCompaction = null;
+            try {
+                doCompactionWork(compactionState);
+            } finally {
+                cleanupCompaction(compactionState);
+            }
         }
     }
 
+    /**
+     * Releases the outputs of a compaction, installed or failed, so that the files of a failed
+     * one are deleted as obsolete.
+     */
     private void cleanupCompaction(CompactionState compactionState) {
         checkState(mutex.isHeldByCurrentThread());
 
         if (compactionState.builder != null) {
             compactionState.builder.abandon();
-        } else {
-            checkArgument(compactionState.outfile == null);
+            compactionState.builder = null;
+            pendingOutputs.remove(compactionState.currentFileNumber);
         }
+        Closeables.closeQuietly(compactionState.outfile);
+        compactionState.outfile = null;
 
         for (FileMetaData output : compactionState.outputs) {
             pendingOutputs.remove(output.getNumber());
         }
     }
 
-    private long recoverLogFile(long fileNumber, VersionEdit edit)
+    /**
+     * Replays {@code logs} in order into memtables, adding the level 0 tables they are
+     * written to to {@code edit}, and returns the largest sequence number found. Records are
+     * read, checked and decoded on a recovery thread while this one inserts them, and full
+     * memtables are written on the flush thread while the replay goes on.
+     */
+    private long recoverLogFiles(List<Long> logs, VersionEdit edit)
             throws IOException {
         checkState(mutex.isHeldByCurrentThread());
-        File file = new File(databaseDir, Filename.logFileName(fileNumber));
-        try (FileInputStream fis = new FileInputStream(file);
-             FileChannel channel = fis.getChannel()) {
-            LogMonitor logMonitor = LogMonitors.logMonitor();
-            LogReader logReader = new LogReader(channel, logMonitor, true, 0);
-
-            // Log(options_.info_log, "Recovering log #%llu", (unsigned long long) log_number);
+        final BlockingQueue<RecoveredBatch> batches = new ArrayBlockingQueue<>(MAX_RECOVERY_QUEUE_SIZE);
+        ExecutorService recoveryExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("leveldb-recovery-%s")
+                .build());
+        Deque<Future<FileMetaData>> flushes = new ArrayDeque<>();
+        List<Long> fileNumbers = new ArrayList<>();
+        boolean recovered = false;
+        try {
+            Future<Void> reader = recoveryExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call()
+                        throws IOException, InterruptedException {
+                    try {
+                        readLogFiles(logs, batches);
+                    } finally {
+                        batches.put(RecoveredBatch.END);
+                    }
+                    return null;
+                }
+            });
 
-            // Read all the records and add to a memtable
             long maxSequence = 0;
             MemTable memTable = null;
-            for (Slice record = logReader.readRecord(); record != null; record = logReader.readRecord()) {
-                SliceInput sliceInput = record.input();
-                // read header
-                if (sliceInput.available() < 12) {
-                    logMonitor.corruption(sliceInput.available(), "log record too small");
-                    continue;
-                }
-                long sequenceBegin = sliceInput.readLong();
-                int updateSize = sliceInput.readInt();
-
-                // read entries
-                WriteBatchImpl writeBatch = readWriteBatch(sliceInput, updateSize);
-
-                // apply entries to memTable
+            for (RecoveredBatch batch = Uninterruptibles.takeUninterruptibly(batches); batch != RecoveredBatch.END;
+                    batch = Uninterruptibles.takeUninterruptibly(batches)) {
                 if (memTable == null) {
-                    memTable = new MemTable(internalKeyComparator);
+                    memTable = newMemTable();
                 }
-                writeBatch.forEach(new InsertIntoHandler(memTable, sequenceBegin));
+                batch.writeBatch.forEach(new InsertIntoHandler(memTable, batch.sequenceBegin));
 
-                // update the maxSequence
-                long lastSequence = sequenceBegin + updateSize - 1;
+                long lastSequence = batch.sequenceBegin + batch.writeBatch.size() - 1;
                 if (lastSequence > maxSequence) {
                     maxSequence = lastSequence;
                 }
 
-                // flush mem table if necessary
                 if (memTable.approximateMemoryUsage() > options.writeBufferSize()) {
-                    writeLevel0Table(memTable, edit, null);
+                    flushes.add(flushRecoveredMemTable(memTable, fileNumbers));
                     memTable = null;
+                    while (flushes.size() > MAX_RECOVERY_FLUSHES) {
+                        addRecoveredTable(flushes.poll(), edit);
+                    }
                 }
             }
+            // surface the reader's failure, if any
+            getRecoveryResult(reader);
 
-            // flush mem table
             if (memTable != null && !memTable.isEmpty()) {
-                writeLevel0Table(memTable, edit, null);
+                flushes.add(flushRecoveredMemTable(memTable, fileNumbers));
             }
-
+            while (!flushes.isEmpty()) {
+                addRecoveredTable(flushes.poll(), edit);
+            }
+            recovered = true;
             return maxSequence;
+        } finally {
+            recoveryExecutor.shutdownNow();
+            if (!recovered) {
+                // no manifest will list the tables, let the running flushes end and delete them all
+                for (Future<FileMetaData> flush : flushes) {
+                    flush.cancel(false);
+                }
+                for (Future<FileMetaData> flush : flushes) {
+                    try {
+                        Uninterruptibles.getUninterruptibly(flush);
+                    } catch (ExecutionException | CancellationException ignored) {
+                    }
+                }
+                for (long fileNumber : fileNumbers) {
+                    new File(databaseDir, ExtendedFilename.ldbTableFileName(fileNumber)).delete();
+                }
+            }
+            pendingOutputs.removeAll(fileNumbers);
+        }
+    }
+
+    /**
+     * Reads the records of {@code logs} and queues them decoded, runs on the recovery thread.
+     */
+    private void readLogFiles(List<Long> logs, BlockingQueue<RecoveredBatch> batches)
+            throws IOException, InterruptedException {
+        for (long fileNumber : logs) {
+            File file = new File(databaseDir, Filename.logFileName(fileNumber));
+            try (FileInputStream fis = new FileInputStream(file);
+                 FileChannel channel = fis.getChannel()) {
+                LogMonitor logMonitor = LogMonitors.logMonitor();
+                LogReader logReader = new LogReader(channel, logMonitor, true, 0);
+
+                for (Slice record = logReader.readRecord(); record != null; record = logReader.readRecord()) {
+                    SliceInput sliceInput = record.input();
+                    // read header
+                    if (sliceInput.available() < 12) {
+                        logMonitor.corruption(sliceInput.available(), "log record too small");
+                        continue;
+                    }
+                    long sequenceBegin = sliceInput.readLong();
+                    int updateSize = sliceInput.readInt();
+
+                    // read entries
+                    WriteBatchImpl writeBatch = readWriteBatch(sliceInput, updateSize);
+                    batches.put(new RecoveredBatch(sequenceBegin, writeBatch));
+                }
+            }
+        }
+    }
+
+    private Future<FileMetaData> flushRecoveredMemTable(final MemTable memTable, List<Long> fileNumbers) {
+        final long fileNumber = versions.getNextFileNumber();
+        pendingOutputs.add(fileNumber);
+        fileNumbers.add(fileNumber);
+        return flushExecutor.submit(new Callable<FileMetaData>() {
+            @Override
+            public FileMetaData call()
+                    throws IOException {
+                eventListener.flushStarted(fileNumber);
+                long start = System.nanoTime();
+                FileMetaData meta = buildTable(memTable, fileNumber);
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                long fileSize = meta != null ? meta.getFileSize() : 0;
+                stats.recordCompaction(0, micros, 0, fileSize);
+                eventListener.flushCompleted(fileNumber, 0, fileSize, micros);
+                return meta;
+            }
+        });
+    }
+
+    private void addRecoveredTable(Future<FileMetaData> flush, VersionEdit edit)
+            throws IOException {
+        FileMetaData meta = getRecoveryResult(flush);
+        // Note that if file size is zero, the file has been deleted and
+        // should not be added to the manifest.
+        if (meta != null && meta.getFileSize() > 0) {
+            edit.addFile(0, meta);
+        }
+    }
+
+    private static <T> T getRecoveryResult(Future<T> future)
+            throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IOException(e.getCause());
         }
     }
 
@@ -517,53 +1117,381 @@ public class BedrockDB implements DB {
     @Override
     public byte[] get(byte[] key, ReadOptions options)
             throws DBException {
+        Slice value = getSlice(key, options);
+        return value != null ? value.getBytes() : null;
+    }
+
+    /**
+     * Like {@link #get(byte[], ReadOptions)}, but returns a read-only, little-endian view of
+     * the value in the table block or memtable holding it instead of a copy, or {@code null}
+     * if there is no value for {@code key}.
+     */
+    public ByteBuffer getBuffer(byte[] key, ReadOptions options)
+            throws DBException {
+        Slice value = getSlice(key, options);
+        return value != null ? ExtendedIteratorAdapter.asReadOnlyBuffer(value) : null;
+    }
+
+    /**
+     * Copies the value for {@code key} into {@code destination} at its position, advancing it,
+     * and returns the length of the value, or -1 if there is none. A value longer than the
+     * remaining space is not copied; its length tells the caller how much to make room for.
+     */
+    public int get(byte[] key, ReadOptions options, ByteBuffer destination)
+            throws DBException {
+        requireNonNull(destination, "destination is null");
+        Slice value = getSlice(key, options);
+        if (value == null) {
+            return -1;
+        }
+        if (value.length() <= destination.remaining()) {
+            value.getBytes(0, destination);
+        }
+        return value.length();
+    }
+
+    private Slice getSlice(byte[] key, ReadOptions options) {
         checkBackgroundException();
-        LookupKey lookupKey;
-        mutex.lock();
+        long start = System.nanoTime();
+        ReadView view = acquireReadView();
+        long sequence;
+        while ((sequence = readSequence(options, view)) < 0) {
+            view.release();
+            view = acquireReadView();
+        }
         try {
-            SnapshotImpl snapshot = getSnapshot(options);
-            lookupKey = new LookupKey(Slices.wrappedBuffer(key), snapshot.getLastSequence());
+            LookupKey lookupKey = new LookupKey(Slices.wrappedBuffer(key), sequence);
 
             // First look in the memtable, then in the immutable memtable (if any).
-            LookupResult lookupResult = memTable.get(lookupKey);
-            if (lookupResult != null) {
-                Slice value = lookupResult.getValue();
-                if (value == null) {
-                    return null;
+            LookupResult lookupResult = view.memTable.get(lookupKey);
+            if (lookupResult == null && view.immutableMemTable != null) {
+                lookupResult = view.immutableMemTable.get(lookupKey);
+            }
+
+            // Not in memTables; try live files in level order
+            if (lookupResult == null) {
+                // Version.get would update the seek statistics of the shared version unlocked
+                ReadStats readStats = new ReadStats();
+                lookupResult = getFromTables(view.version, lookupKey, readStats);
+                chargeSeek(readStats);
+            }
+
+            return lookupResult != null ? lookupResult.getValue() : null;
+        } finally {
+            view.release();
+            latencies.get(DbOperation.GET).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Charges the seek of {@code readStats} to its table and asks for the compaction of the
+     * table once it used up its seeks. The table is recorded under the mutex, so that it stays
+     * paired with its level, and left to a later read while the mutex is busy.
+     */
+    private void chargeSeek(ReadStats readStats) {
+        FileMetaData seekFile = readStats.getSeekFile();
+        if (seekFile == null) {
+            return;
+        }
+        seekFile.decrementAllowedSeeks();
+        if (seekFile.getAllowedSeeks() <= 0 && mutex.tryLock()) {
+            try {
+                if (fileToCompact == null) {
+                    fileToCompact = seekFile;
+                    fileToCompactLevel = readStats.getSeekFileLevel();
+                    maybeScheduleCompaction();
                 }
-                return value.getBytes();
+            } finally {
+                mutex.unlock();
             }
-            if (immutableMemTable != null) {
-                lookupResult = immutableMemTable.get(lookupKey);
+        }
+    }
+
+    /**
+     * Returns the latencies of {@code operation} since the database was opened.
+     */
+    public LatencyHistogram getLatencyHistogram(DbOperation operation) {
+        requireNonNull(operation, "operation is null");
+        return latencies.get(operation);
+    }
+
+    public List<byte[]> multiGet(List<byte[]> keys)
+            throws DBException {
+        return multiGet(keys, new ReadOptions());
+    }
+
+    /**
+     * Reads the values of {@code keys} from one consistent view of the database, returning
+     * them in the same order with {@code null} for missing keys. The keys are resolved in
+     * sorted order, and the keys a table may hold are looked up in it with one
+     * {@link org.iq80.leveldb.table.ScanTableIterator}. As that iterator keeps its open data
+     * block for a seek landing in it, a key in the same block as the key looked up before it
+     * in the table reuses the block; any other key reads its block like a single get, through
+     * the block cache if there is one.
+     */
+    public List<byte[]> multiGet(List<byte[]> keys, ReadOptions options)
+            throws DBException {
+        requireNonNull(keys, "keys is null");
+        checkBackgroundException();
+        final Slice[] userKeys = new Slice[keys.size()];
+        Integer[] order = new Integer[userKeys.length];
+        for (int i = 0; i < userKeys.length; i++) {
+            userKeys[i] = Slices.wrappedBuffer(keys.get(i));
+            order[i] = i;
+        }
+        final UserComparator userComparator = internalKeyComparator.getUserComparator();
+        Arrays.sort(order, (a, b) -> userComparator.compare(userKeys[a], userKeys[b]));
+
+        LookupKey[] lookupKeys = new LookupKey[userKeys.length];
+        LookupResult[] lookupResults = new LookupResult[userKeys.length];
+        long start = System.nanoTime();
+        ReadView view = acquireReadView();
+        long sequence;
+        while ((sequence = readSequence(options, view)) < 0) {
+            view.release();
+            view = acquireReadView();
+        }
+        try {
+            for (int i = 0; i < userKeys.length; i++) {
+                lookupKeys[i] = new LookupKey(userKeys[i], sequence);
+            }
+            List<Integer> pending = new ArrayList<>();
+            for (int index : order) {
+                LookupResult lookupResult = view.memTable.get(lookupKeys[index]);
+                if (lookupResult == null && view.immutableMemTable != null) {
+                    lookupResult = view.immutableMemTable.get(lookupKeys[index]);
+                }
                 if (lookupResult != null) {
-                    Slice value = lookupResult.getValue();
-                    if (value == null) {
-                        return null;
-                    }
-                    return value.getBytes();
+                    lookupResults[index] = lookupResult;
+                } else {
+                    pending.add(index);
                 }
             }
+            if (!pending.isEmpty()) {
+                getFromTables(view.version, lookupKeys, pending, lookupResults);
+            }
         } finally {
-            mutex.unlock();
+            view.release();
+            latencies.get(DbOperation.MULTI_GET).record(System.nanoTime() - start);
         }
 
-        // Not in memTables; try live files in level order
-        LookupResult lookupResult = versions.get(lookupKey);
+        List<byte[]> values = new ArrayList<>(lookupKeys.length);
+        for (LookupResult lookupResult : lookupResults) {
+            Slice value = lookupResult != null ? lookupResult.getValue() : null;
+            values.add(value != null ? value.getBytes() : null);
+        }
+        return values;
+    }
 
-        // schedule compaction if necessary
-        mutex.lock();
-        try {
-            if (versions.needsCompaction()) {
-                maybeScheduleCompaction();
+    private MemTable newMemTable() {
+        return options.memTableFactory().newMemTable(internalKeyComparator);
+    }
+
+    private ReadView acquireReadView() {
+        while (true) {
+            ReadView view = readView;
+            if (view.tryRetain()) {
+                return view;
             }
-        } finally {
-            mutex.unlock();
+            // replaced and released meanwhile, the field already holds its successor
         }
+    }
 
-        if (lookupResult != null) {
-            Slice value = lookupResult.getValue();
-            if (value != null) {
-                return value.getBytes();
+    /**
+     * Returns the sequence a read through {@code view} sees, or -1 if the view was replaced
+     * before a sequence could be paired with it. Without a snapshot, the sequence is read while
+     * the view is still current: a compaction installing a later view may already have dropped
+     * the older versions of a key that the sequence needs.
+     */
+    private long readSequence(ReadOptions options, ReadView view) {
+        if (options.snapshot() != null) {
+            return ((SnapshotImpl) options.snapshot()).getLastSequence();
+        }
+        long sequence = visibleSequence;
+        return readView == view ? sequence : -1;
+    }
+
+    private void installReadView() {
+        checkState(mutex.isHeldByCurrentThread());
+        ReadView previous = readView;
+        readView = new ReadView(memTable, immutableMemTable, versions.getCurrent());
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Same level order walk as {@link Version#get(LookupKey)}, but tables whose filter
+     * rules the key out are skipped without reading a data block. As in LevelDB, a read
+     * probing more than one table charges a seek to the first one, filtered out or not,
+     * in {@code readStats}.
+     */
+    private LookupResult getFromTables(Version version, LookupKey key, ReadStats readStats) {
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        Slice userKey = key.getUserKey();
+        Slice filterKey = key.getInternalKey().encode();
+        FileMetaData lastFileRead = null;
+        int lastFileReadLevel = -1;
+
+        // Level-0 files may overlap each other, search all candidates from newest to oldest
+        List<FileMetaData> level0Files = new ArrayList<>();
+        for (FileMetaData file : version.getFiles(0)) {
+            if (userComparator.compare(userKey, file.getSmallest().getUserKey()) >= 0 &&
+                    userComparator.compare(userKey, file.getLargest().getUserKey()) <= 0) {
+                level0Files.add(file);
+            }
+        }
+        level0Files.sort(Level0.NEWEST_FIRST);
+        for (FileMetaData file : level0Files) {
+            if (lastFileRead != null && readStats.getSeekFile() == null) {
+                readStats.setSeekFile(lastFileRead);
+                readStats.setSeekFileLevel(lastFileReadLevel);
+            }
+            lastFileRead = file;
+            lastFileReadLevel = 0;
+
+            LookupResult lookupResult = getFromTable(file, key, filterKey);
+            if (lookupResult != null) {
+                return lookupResult;
+            }
+        }
+
+        for (int level = 1; level < version.numberOfLevels(); level++) {
+            List<FileMetaData> files = version.getFiles(level);
+
+            // Binary search to find earliest file whose largest key >= internal key
+            int left = 0;
+            int right = files.size();
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (internalKeyComparator.compare(files.get(mid).getLargest(), key.getInternalKey()) < 0) {
+                    left = mid + 1;
+                } else {
+                    right = mid;
+                }
+            }
+            if (left == files.size()) {
+                continue;
+            }
+
+            FileMetaData file = files.get(left);
+            if (userComparator.compare(userKey, file.getSmallest().getUserKey()) >= 0) {
+                if (lastFileRead != null && readStats.getSeekFile() == null) {
+                    readStats.setSeekFile(lastFileRead);
+                    readStats.setSeekFileLevel(lastFileReadLevel);
+                }
+                lastFileRead = file;
+                lastFileReadLevel = level;
+
+                LookupResult lookupResult = getFromTable(file, key, filterKey);
+                if (lookupResult != null) {
+                    return lookupResult;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Batched {@link #getFromTables(Version, LookupKey)}: resolves the keys at the
+     * {@code pending} indexes, given in ascending user key order, into {@code lookupResults}.
+     * Each table is searched once for all its candidate keys.
+     */
+    private void getFromTables(Version version, LookupKey[] keys, List<Integer> pending, LookupResult[] lookupResults) {
+        List<FileMetaData> level0Files = new ArrayList<>(version.getFiles(0));
+        level0Files.sort(Level0.NEWEST_FIRST);
+        for (FileMetaData file : level0Files) {
+            pending = getFromTable(file, keys, pending, lookupResults);
+            if (pending.isEmpty()) {
+                return;
+            }
+        }
+
+        for (int level = 1; level < version.numberOfLevels(); level++) {
+            List<FileMetaData> files = version.getFiles(level);
+            if (files.isEmpty()) {
+                continue;
+            }
+
+            // both the keys and the files are sorted, walk them together
+            List<Integer> unresolved = new ArrayList<>();
+            int fileIndex = 0;
+            int start = 0;
+            while (start < pending.size()) {
+                InternalKey internalKey = keys[pending.get(start)].getInternalKey();
+                while (fileIndex < files.size() &&
+                        internalKeyComparator.compare(files.get(fileIndex).getLargest(), internalKey) < 0) {
+                    fileIndex++;
+                }
+                if (fileIndex == files.size()) {
+                    unresolved.addAll(pending.subList(start, pending.size()));
+                    break;
+                }
+                FileMetaData file = files.get(fileIndex);
+                int end = start + 1;
+                while (end < pending.size() &&
+                        internalKeyComparator.compare(file.getLargest(), keys[pending.get(end)].getInternalKey()) >= 0) {
+                    end++;
+                }
+                unresolved.addAll(getFromTable(file, keys, pending.subList(start, end), lookupResults));
+                start = end;
+            }
+            pending = unresolved;
+            if (pending.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Searches {@code file} for the keys at the {@code candidates} indexes, in order,
+     * returning the indexes of the keys it does not hold.
+     */
+    private List<Integer> getFromTable(FileMetaData file, LookupKey[] keys, List<Integer> candidates,
+            LookupResult[] lookupResults) {
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        List<Integer> unresolved = new ArrayList<>();
+        InternalTableIterator iterator = null;
+        for (int index : candidates) {
+            LookupKey key = keys[index];
+            if (userComparator.compare(key.getUserKey(), file.getSmallest().getUserKey()) < 0 ||
+                    userComparator.compare(key.getUserKey(), file.getLargest().getUserKey()) > 0 ||
+                    !tableCache.keyMayMatch(file, key.getInternalKey().encode())) {
+                unresolved.add(index);
+                continue;
+            }
+            if (iterator == null) {
+                iterator = tableCache.newScanIterator(file, null, 0, null);
+            }
+            LookupResult lookupResult = getFromTable(iterator, key);
+            if (lookupResult != null) {
+                lookupResults[index] = lookupResult;
+            } else {
+                unresolved.add(index);
+            }
+        }
+        return unresolved;
+    }
+
+    private LookupResult getFromTable(FileMetaData file, LookupKey key, Slice filterKey) {
+        if (!tableCache.keyMayMatch(file, filterKey)) {
+            return null;
+        }
+
+        return getFromTable(tableCache.newIterator(file), key);
+    }
+
+    private static LookupResult getFromTable(InternalTableIterator iterator, LookupKey key) {
+        iterator.seek(key.getInternalKey());
+        if (iterator.hasNext()) {
+            Entry<InternalKey, Slice> entry = iterator.next();
+            InternalKey internalKey = entry.getKey();
+            if (key.getUserKey().equals(internalKey.getUserKey())) {
+                if (internalKey.getValueType() == DELETION) {
+                    return LookupResult.deleted(key);
+                } else if (internalKey.getValueType() == VALUE) {
+                    return LookupResult.ok(key, entry.getValue());
+                }
             }
         }
         return null;
@@ -608,41 +1536,156 @@ public class BedrockDB implements DB {
     public Snapshot writeInternal(WriteBatchImpl updates, WriteOptions options)
             throws DBException {
         checkBackgroundException();
+        Writer writer = new Writer(updates, options.sync(), mutex.newCondition());
+        long start = System.nanoTime();
         mutex.lock();
         try {
-            long sequenceEnd;
-            if (updates.size() != 0) {
-                makeRoomForWrite(false);
+            write(writer);
+
+            if (options.snapshot()) {
+                return snapshots.newSnapshot(versions.getCurrent(), writer.sequenceEnd);
+            } else {
+                return null;
+            }
+        } finally {
+            mutex.unlock();
+            latencies.get(DbOperation.WRITE).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Queues the writer and returns once its batch has been committed. The writer at the head
+     * of the queue becomes the leader: it appends the batches queued behind it to its own as a
+     * single log record, synced at most once, and applies them to the memtable without holding
+     * the mutex, so other writers can queue up for the next group meanwhile.
+     */
+    private void write(Writer writer) {
+        checkState(mutex.isHeldByCurrentThread());
+
+        writers.addLast(writer);
+        while (!writer.done && writers.peekFirst() != writer) {
+            writer.condition.awaitUninterruptibly();
+        }
+        if (writer.done) {
+            // committed by a leader
+            if (writer.error != null) {
+                throw new DBException("Write failed", writer.error);
+            }
+            return;
+        }
+
+        Writer lastWriter = writer;
+        RuntimeException error = null;
+        try {
+            makeRoomForWrite(writer.batch == null);
+
+            if (writer.batch == null) {
+                writer.sequenceEnd = versions.getLastSequence();
+            } else {
+                List<Writer> group = buildWriteGroup();
+                lastWriter = group.get(group.size() - 1);
 
                 // Get sequence numbers for this change set
                 long sequenceBegin = versions.getLastSequence() + 1;
-                sequenceEnd = sequenceBegin + updates.size() - 1;
+                long sequenceEnd = sequenceBegin - 1;
+                for (Writer member : group) {
+                    sequenceEnd += member.batch.size();
+                    member.sequenceEnd = sequenceEnd;
+                }
 
-                // Reserve this sequence in the version set
-                versions.setLastSequence(sequenceEnd);
+                if (sequenceEnd >= sequenceBegin) {
+                    Slice record = writeWriteBatch(group, sequenceBegin, (int) (sequenceEnd - sequenceBegin + 1));
+                    MemTable memTable = this.memTable;
 
-                // Log write
-                Slice record = writeWriteBatch(updates, sequenceBegin);
-                try {
-                    log.addRecord(record, options.sync());
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    // Only the leader touches the log and the memtable, which readers see
+                    // through the last sequence published once the whole group is applied
+                    mutex.unlock();
+                    try {
+                        // Log write
+                        log.addRecord(record, writer.sync);
+
+                        // Update memtable
+                        long sequence = sequenceBegin;
+                        for (Writer member : group) {
+                            member.batch.forEach(new InsertIntoHandler(memTable, sequence));
+                            sequence += member.batch.size();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // The log may hold part of the group and the memtable some of its
+                        // entries, under sequence numbers that were never published. Fail
+                        // all later writes rather than hand the numbers out again.
+                        recordBackgroundError(e);
+                        throw new DBException("Write failed", e);
+                    } finally {
+                        mutex.lock();
+                    }
+
+                    versions.setLastSequence(sequenceEnd);
+                    visibleSequence = sequenceEnd;
+                }
+            }
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            while (true) {
+                Writer ready = writers.pollFirst();
+                if (ready != writer) {
+                    ready.error = error;
+                    ready.done = true;
+                    ready.condition.signal();
                 }
+                if (ready == lastWriter) {
+                    break;
+                }
+            }
 
-                // Update memtable
-                updates.forEach(new InsertIntoHandler(memTable, sequenceBegin));
-            } else {
-                sequenceEnd = versions.getLastSequence();
+            // Notify new head of write queue
+            Writer next = writers.peekFirst();
+            if (next != null) {
+                next.condition.signal();
             }
+        }
+    }
 
-            if (options.snapshot()) {
-                return new SnapshotImpl(versions.getCurrent(), sequenceEnd);
-            } else {
-                return null;
+    /**
+     * Collects the writers at the head of the queue to commit together, starting with the leader.
+     */
+    private List<Writer> buildWriteGroup() {
+        checkState(mutex.isHeldByCurrentThread());
+
+        Iterator<Writer> iterator = writers.iterator();
+        Writer first = iterator.next();
+        List<Writer> group = new ArrayList<>();
+        group.add(first);
+
+        // Allow the group to grow up to a maximum size, but if the
+        // original write is small, limit the growth so we do not slow
+        // down the small write too much.
+        int size = first.batch.getApproximateSize();
+        int maxSize = MAX_WRITE_GROUP_SIZE;
+        if (size <= SMALL_WRITE_SIZE) {
+            maxSize = size + SMALL_WRITE_SIZE;
+        }
+
+        while (iterator.hasNext()) {
+            Writer writer = iterator.next();
+            if (writer.sync && !first.sync) {
+                // Do not include a sync write into a group handled by a non-sync write.
+                break;
             }
-        } finally {
-            mutex.unlock();
+            if (writer.batch == null) {
+                // Memtable flushes are handled on their own
+                break;
+            }
+            size += writer.batch.getApproximateSize();
+            if (size > maxSize) {
+                // Do not make the group too big
+                break;
+            }
+            group.add(writer);
         }
+        return group;
     }
 
     @Override
@@ -652,21 +1695,35 @@ public class BedrockDB implements DB {
     }
 
     @Override
-    public SeekingIteratorAdapter iterator() {
+    public ExtendedIteratorAdapter iterator() {
         return iterator(new ReadOptions());
     }
 
     @Override
-    public SeekingIteratorAdapter iterator(ReadOptions options) {
+    public ExtendedIteratorAdapter iterator(ReadOptions options) {
         checkBackgroundException();
         mutex.lock();
         try {
-            DbIterator rawIterator = internalIterator();
+            if (!(options instanceof ExtendedReadOptions)) {
+                DbIterator rawIterator = internalIterator();
+
+                // filter any entries not visible in our snapshot
+                SnapshotImpl snapshot = getSnapshot(options);
+                SnapshotSeekingIterator snapshotIterator = new SnapshotSeekingIterator(rawIterator, snapshot, internalKeyComparator.getUserComparator());
+                return new ExtendedIteratorAdapter(snapshotIterator, latencies.get(DbOperation.ITERATOR_SEEK));
+            }
+
+            ExtendedReadOptions extendedOptions = (ExtendedReadOptions) options;
+            Slice lowerBound = extendedOptions.iterateLowerBound() == null ? null : Slices.wrappedBuffer(extendedOptions.iterateLowerBound().clone());
+            Slice upperBound = extendedOptions.iterateUpperBound() == null ? null : Slices.wrappedBuffer(extendedOptions.iterateUpperBound().clone());
+            // the smallest internal key of the upper bound, so tables stop before any of its entries
+            Slice tableUpperBound = upperBound == null ? null : new InternalKey(upperBound, MAX_SEQUENCE_NUMBER, VALUE).encode();
+            DbIterator rawIterator = internalIterator(extendedOptions.readaheadBlocks(), lowerBound, upperBound, tableUpperBound);
 
-            // filter any entries not visible in our snapshot
             SnapshotImpl snapshot = getSnapshot(options);
             SnapshotSeekingIterator snapshotIterator = new SnapshotSeekingIterator(rawIterator, snapshot, internalKeyComparator.getUserComparator());
-            return new SeekingIteratorAdapter(snapshotIterator);
+            return new BoundedIteratorAdapter(snapshotIterator, lowerBound, upperBound, internalKeyComparator.getUserComparator(),
+                    latencies.get(DbOperation.ITERATOR_SEEK));
         } finally {
             mutex.unlock();
         }
@@ -696,12 +1753,60 @@ public class BedrockDB implements DB {
         }
     }
 
+    /**
+     * Like {@link #internalIterator()}, with the tables of the current version read by scan
+     * iterators, which read {@code readaheadBlocks} data blocks ahead and end before
+     * {@code tableUpperBound}, an encoded internal key. Tables holding no user keys from
+     * {@code lowerBound} up to {@code upperBound}, exclusive, are left out; any bound may be
+     * {@code null}.
+     */
+    private DbIterator internalIterator(int readaheadBlocks, Slice lowerBound, Slice upperBound, Slice tableUpperBound) {
+        mutex.lock();
+        try {
+            MemTable.MemTableIterator iterator = null;
+            if (immutableMemTable != null) {
+                iterator = immutableMemTable.iterator();
+            }
+            Version current = versions.getCurrent();
+            List<InternalTableIterator> level0Files = new ArrayList<>();
+            for (FileMetaData file : current.getFiles(0)) {
+                if (overlapsBounds(file, lowerBound, upperBound)) {
+                    level0Files.add(tableCache.newScanIterator(file, readaheadExecutor, readaheadBlocks, tableUpperBound));
+                }
+            }
+            // the other levels are merged like level 0 tables, as a level is a single sorted run
+            for (int level = 1; level < NUM_LEVELS; level++) {
+                List<FileMetaData> files = new ArrayList<>();
+                for (FileMetaData file : current.getFiles(level)) {
+                    if (overlapsBounds(file, lowerBound, upperBound)) {
+                        files.add(file);
+                    }
+                }
+                if (!files.isEmpty()) {
+                    level0Files.add(new ScanLevelIterator(tableCache, files, internalKeyComparator,
+                            readaheadExecutor, readaheadBlocks, tableUpperBound));
+                }
+            }
+            return new DbIterator(memTable.iterator(), iterator, level0Files, Collections.<LevelIterator>emptyList(), internalKeyComparator);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private boolean overlapsBounds(FileMetaData file, Slice lowerBound, Slice upperBound) {
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        if (lowerBound != null && userComparator.compare(file.getLargest().getUserKey(), lowerBound) < 0) {
+            return false;
+        }
+        return upperBound == null || userComparator.compare(file.getSmallest().getUserKey(), upperBound) < 0;
+    }
+
     @Override
     public Snapshot getSnapshot() {
         checkBackgroundException();
         mutex.lock();
         try {
-            return new SnapshotImpl(versions.getCurrent(), versions.getLastSequence());
+            return snapshots.newSnapshot(versions.getCurrent(), versions.getLastSequence());
         } finally {
             mutex.unlock();
         }
@@ -724,12 +1829,12 @@ public class BedrockDB implements DB {
         boolean allowDelay = !force;
 
         while (true) {
-            // todo background processing system need work
-//            if (!bg_error_.ok()) {
-//              // Yield previous error
-//              s = bg_error_;
-//              break;
-//            } else
+            // Yield a previous write or background error
+            checkBackgroundException();
+            if (shuttingDown.get()) {
+                // no flush or compaction makes room once the database shuts down
+                throw new DbImpl.DatabaseShutdownException("DB shutdown during write");
+            }
             if (allowDelay && versions.numberOfFilesInLevel(0) > L0_SLOWDOWN_WRITES_TRIGGER) {
                 // We are getting close to hitting a hard limit on the number of
                 // L0 files.  Rather than delaying a single write by several
@@ -737,6 +1842,7 @@ public class BedrockDB implements DB {
                 // individual write by 1ms to reduce latency variance.  Also,
                 // this delay hands over some CPU to the compaction thread in
                 // case it is sharing the same core as the writer.
+                long start = stallStarted(WriteStall.LEVEL0_SLOWDOWN);
                 try {
                     mutex.unlock();
                     Thread.sleep(1);
@@ -746,6 +1852,7 @@ public class BedrockDB implements DB {
                 } finally {
                     mutex.lock();
                 }
+                stallEnded(WriteStall.LEVEL0_SLOWDOWN, start);
 
                 // Do not delay a single write more than once
                 allowDelay = false;
@@ -755,11 +1862,15 @@ public class BedrockDB implements DB {
             } else if (immutableMemTable != null) {
                 // We have filled up the current memtable, but the previous
                 // one is still being compacted, so we wait.
+                long start = stallStarted(WriteStall.MEMTABLE_FULL);
                 backgroundCondition.awaitUninterruptibly();
+                stallEnded(WriteStall.MEMTABLE_FULL, start);
             } else if (versions.numberOfFilesInLevel(0) >= L0_STOP_WRITES_TRIGGER) {
                 // There are too many level-0 files.
 //                Log(options_.info_log, "waiting...\n");
+                long start = stallStarted(WriteStall.LEVEL0_STOP);
                 backgroundCondition.awaitUninterruptibly();
+                stallEnded(WriteStall.LEVEL0_STOP, start);
             } else {
                 // Attempt to switch to a new memtable and trigger compaction of old
                 checkState(versions.getPrevLogNumber() == 0);
@@ -782,7 +1893,8 @@ public class BedrockDB implements DB {
 
                 // create a new mem table
                 immutableMemTable = memTable;
-                memTable = new MemTable(internalKeyComparator);
+                memTable = newMemTable();
+                installReadView();
 
                 // Do not force another compaction there is space available
                 force = false;
@@ -792,11 +1904,27 @@ public class BedrockDB implements DB {
         }
     }
 
+    private long stallStarted(WriteStall stall) {
+        eventListener.writeStallStarted(stall);
+        return System.nanoTime();
+    }
+
+    private void stallEnded(WriteStall stall, long start) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        stats.recordStall(stall, micros);
+        eventListener.writeStallEnded(stall, micros);
+    }
+
     public void compactMemTable()
             throws IOException {
         mutex.lock();
         try {
-            compactMemTableInternal();
+            // the flush thread owns the immutable memtable, wait for it to be written
+            while (immutableMemTable != null && !shuttingDown.get()) {
+                checkBackgroundException();
+                maybeScheduleCompaction();
+                backgroundCondition.awaitUninterruptibly();
+            }
         } finally {
             mutex.unlock();
         }
@@ -812,8 +1940,7 @@ public class BedrockDB implements DB {
         try {
             // Save the contents of the memtable as a new Table
             VersionEdit edit = new VersionEdit();
-            Version base = versions.getCurrent();
-            writeLevel0Table(immutableMemTable, edit, base);
+            writeLevel0Table(immutableMemTable, edit);
 
             if (shuttingDown.get()) {
                 throw new DbImpl.DatabaseShutdownException("Database shutdown during memtable compaction");
@@ -825,6 +1952,7 @@ public class BedrockDB implements DB {
             versions.logAndApply(edit);
 
             immutableMemTable = null;
+            installReadView();
 
             deleteObsoleteFiles();
         } finally {
@@ -832,7 +1960,11 @@ public class BedrockDB implements DB {
         }
     }
 
-    private void writeLevel0Table(MemTable mem, VersionEdit edit, Version base)
+    /**
+     * Writes the memtable to a new table, placed in level 0 unless no compaction is running
+     * and the table overlaps nothing in the levels it could be pushed down to.
+     */
+    private void writeLevel0Table(MemTable mem, VersionEdit edit)
             throws IOException {
         checkState(mutex.isHeldByCurrentThread());
 
@@ -844,13 +1976,16 @@ public class BedrockDB implements DB {
         // write the memtable to a new sstable
         long fileNumber = versions.getNextFileNumber();
         pendingOutputs.add(fileNumber);
+        long start = System.nanoTime();
         mutex.unlock();
         FileMetaData meta;
         try {
+            eventListener.flushStarted(fileNumber);
             meta = buildTable(mem, fileNumber);
         } finally {
             mutex.lock();
         }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
         pendingOutputs.remove(fileNumber);
 
         // Note that if file size is zero, the file has been deleted and
@@ -859,11 +1994,15 @@ public class BedrockDB implements DB {
         if (meta != null && meta.getFileSize() > 0) {
             Slice minUserKey = meta.getSmallest().getUserKey();
             Slice maxUserKey = meta.getLargest().getUserKey();
-            if (base != null) {
-                level = base.pickLevelForMemTableOutput(minUserKey, maxUserKey);
+            // a running compaction may be rewriting any key range past level 0
+            if (runningCompactions.isEmpty()) {
+                level = versions.getCurrent().pickLevelForMemTableOutput(minUserKey, maxUserKey);
             }
             edit.addFile(level, meta);
         }
+        long fileSize = meta != null ? meta.getFileSize() : 0;
+        stats.recordCompaction(level, micros, 0, fileSize);
+        eventListener.flushCompleted(fileNumber, level, fileSize, micros);
     }
 
     private FileMetaData buildTable(SeekingIterable<InternalKey, Slice> data, long fileNumber)
@@ -874,7 +2013,8 @@ public class BedrockDB implements DB {
             InternalKey largest = null;
             FileChannel channel = new FileOutputStream(file).getChannel();
             try {
-                ExtendedTableBuilder tableBuilder = new ExtendedTableBuilder(options, channel, new InternalUserComparator(internalKeyComparator));
+                ExtendedTableBuilder tableBuilder = new ExtendedTableBuilder(options, channel, new InternalUserComparator(internalKeyComparator), filterPolicy,
+                        blockCompressionExecutor, 0);
 
                 for (Entry<InternalKey, Slice> entry : data) {
                     // update keys
@@ -888,6 +2028,7 @@ public class BedrockDB implements DB {
                 }
 
                 tableBuilder.finish();
+                recordCompression(0, tableBuilder);
             } finally {
                 try {
                     channel.force(true);
@@ -904,8 +2045,6 @@ public class BedrockDB implements DB {
             // verify table can be opened
             tableCache.newIterator(fileMetaData);
 
-            pendingOutputs.remove(fileNumber);
-
             return fileMetaData;
 
         } catch (IOException e) {
@@ -920,101 +2059,337 @@ public class BedrockDB implements DB {
         checkArgument(versions.numberOfBytesInLevel(compactionState.getCompaction().getLevel()) > 0);
         checkArgument(compactionState.builder == null);
         checkArgument(compactionState.outfile == null);
+        long start = System.nanoTime();
 
-        // todo track snapshots
-        compactionState.smallestSnapshot = versions.getLastSequence();
+        // readers without a snapshot always see the newest entry of a key
+        compactionState.snapshots = snapshots.getSequences(MAX_SEQUENCE_NUMBER);
+        compactionState.smallestSnapshot = compactionState.snapshots[0];
+
+        Version inputVersion = versions.getCurrent();
+        List<FileMetaData> grandparents = getGrandparents(compactionState.compaction);
+        List<FileMetaData> inputFiles = new ArrayList<>();
+        for (List<FileMetaData> inputs : compactionState.compaction.getInputs()) {
+            inputFiles.addAll(inputs);
+        }
+        long[] inputFileNumbers = fileNumbers(inputFiles);
+        long bytesRead = Compaction.totalFileSize(inputFiles);
 
         // Release mutex while we're actually doing the compaction work
         mutex.unlock();
         try {
-            MergingIterator iterator = versions.makeInputIterator(compactionState.compaction);
+            eventListener.compactionStarted(compactionState.compaction.getLevel(), inputFileNumbers, bytesRead);
+            List<Slice> boundaries = pickSubcompactionBoundaries(compactionState.compaction);
+            if (boundaries.isEmpty()) {
+                processCompaction(compactionState, null, null);
+            } else {
+                runSubcompactions(compactionState, inputVersion, grandparents, boundaries);
+            }
+        } finally {
+            mutex.lock();
+        }
 
-            Slice currentUserKey = null;
-            boolean hasCurrentUserKey = false;
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        long bytesWritten = Compaction.totalFileSize(compactionState.outputs);
+        stats.recordCompaction(compactionState.compaction.getLevel() + 1, micros, bytesRead, bytesWritten);
+        eventListener.compactionCompleted(compactionState.compaction.getLevel(), inputFileNumbers, fileNumbers(compactionState.outputs),
+                bytesRead, bytesWritten, micros);
 
-            long lastSequenceForKey = MAX_SEQUENCE_NUMBER;
-            while (iterator.hasNext() && !shuttingDown.get()) {
-                // always give priority to compacting the current mem table
-                mutex.lock();
-                try {
-                    compactMemTableInternal();
-                } finally {
-                    mutex.unlock();
-                }
+        installCompactionResults(compactionState);
+    }
 
-                InternalKey key = iterator.peek().getKey();
-                if (compactionState.compaction.shouldStopBefore(key) && compactionState.builder != null) {
-                    finishCompactionOutputFile(compactionState);
+    private static long[] fileNumbers(List<FileMetaData> files) {
+        long[] numbers = new long[files.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = files.get(i).getNumber();
+        }
+        return numbers;
+    }
+
+    /**
+     * Returns the files of the level after the output level that overlap the compaction,
+     * which decide where its output files are cut.
+     */
+    private List<FileMetaData> getGrandparents(Compaction compaction) {
+        checkState(mutex.isHeldByCurrentThread());
+        if (compaction.getLevel() + 2 >= NUM_LEVELS) {
+            return Collections.emptyList();
+        }
+        InternalKey smallest = null;
+        InternalKey largest = null;
+        for (List<FileMetaData> inputs : compaction.getInputs()) {
+            for (FileMetaData file : inputs) {
+                if (smallest == null || internalKeyComparator.compare(file.getSmallest(), smallest) < 0) {
+                    smallest = file.getSmallest();
                 }
+                if (largest == null || internalKeyComparator.compare(file.getLargest(), largest) > 0) {
+                    largest = file.getLargest();
+                }
+            }
+        }
+        return versions.getOverlappingInputs(compaction.getLevel() + 2, smallest, largest);
+    }
 
-                // Handle key/value, add to state, etc.
-                boolean drop = false;
-                // todo if key doesn't parse (it is corrupted),
-                if (false /*!ParseInternalKey(key, &ikey)*/) {
-                    // do not hide error keys
-                    currentUserKey = null;
-                    hasCurrentUserKey = false;
-                    lastSequenceForKey = MAX_SEQUENCE_NUMBER;
-                } else {
-                    if (!hasCurrentUserKey || internalKeyComparator.getUserComparator().compare(key.getUserKey(), currentUserKey) != 0) {
-                        // First occurrence of this user key
-                        currentUserKey = key.getUserKey();
-                        hasCurrentUserKey = true;
-                        lastSequenceForKey = MAX_SEQUENCE_NUMBER;
-                    }
+    /**
+     * Picks user keys that split the compaction into ranges of about the same number of
+     * data blocks, using the index blocks of the input tables. Every range gets at least
+     * one output file worth of input, so small compactions are not split at all.
+     */
+    private List<Slice> pickSubcompactionBoundaries(Compaction compaction) {
+        if (subcompactionExecutor == null) {
+            return Collections.emptyList();
+        }
+        long inputBytes = 0;
+        for (List<FileMetaData> inputs : compaction.getInputs()) {
+            inputBytes += Compaction.totalFileSize(inputs);
+        }
+        int subcompactions = (int) Math.min(maxSubcompactions, inputBytes / compaction.getMaxOutputFileSize());
+        if (subcompactions <= 1) {
+            return Collections.emptyList();
+        }
 
-                    if (lastSequenceForKey <= compactionState.smallestSnapshot) {
-                        // Hidden by an newer entry for same user key
-                        drop = true; // (A)
-                    } else if (key.getValueType() == DELETION &&
-                            key.getSequenceNumber() <= compactionState.smallestSnapshot &&
-                            compactionState.compaction.isBaseLevelForKey(key.getUserKey())) {
-                        // For this user key:
-                        // (1) there is no data in higher levels
-                        // (2) data in lower levels will have larger sequence numbers
-                        // (3) data in layers that are being compacted here and have
-                        //     smaller sequence numbers will be dropped in the next
-                        //     few iterations of this loop (by rule (A) above).
-                        // Therefore this deletion marker is obsolete and can be dropped.
-                        drop = true;
-                    }
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        List<Slice> keys = new ArrayList<>();
+        for (List<FileMetaData> inputs : compaction.getInputs()) {
+            for (FileMetaData file : inputs) {
+                for (Slice indexKey : tableCache.getIndexKeys(file)) {
+                    keys.add(new InternalKey(indexKey).getUserKey());
+                }
+            }
+        }
+        Collections.sort(keys, userComparator);
+
+        List<Slice> boundaries = new ArrayList<>();
+        for (int i = 1; i < subcompactions && i < keys.size(); i++) {
+            Slice key = keys.get((int) ((long) i * keys.size() / subcompactions));
+            if (boundaries.isEmpty() || userComparator.compare(key, boundaries.get(boundaries.size() - 1)) > 0) {
+                boundaries.add(key);
+            }
+        }
+        return boundaries;
+    }
 
-                    lastSequenceForKey = key.getSequenceNumber();
+    /**
+     * Compacts every range between two boundaries on a thread of its own, with the first
+     * range on the calling thread, and collects all output files into {@code compactionState}.
+     */
+    private void runSubcompactions(CompactionState compactionState, Version inputVersion,
+                                   List<FileMetaData> grandparents, List<Slice> boundaries)
+            throws IOException {
+        Compaction compaction = compactionState.compaction;
+        // set by the first range to fail, stopping the others; interrupts would close the
+        // file channels of the input tables they share with readers
+        final AtomicBoolean cancelled = compactionState.cancelled;
+        List<CompactionState> subcompactions = new ArrayList<>();
+        List<Future<Void>> futures = new ArrayList<>();
+        Throwable failure = null;
+        try {
+            for (int i = 0; i <= boundaries.size(); i++) {
+                // Every subcompaction needs its own Compaction, which tracks where outputs are cut
+                final CompactionState subcompaction = new CompactionState(new Compaction(inputVersion, compaction.getLevel(),
+                        compaction.getLevelInputs(), compaction.getLevelUpInputs(), grandparents));
+                subcompaction.snapshots = compactionState.snapshots;
+                subcompaction.smallestSnapshot = compactionState.smallestSnapshot;
+                subcompaction.cancelled = cancelled;
+                subcompactions.add(subcompaction);
+                if (i > 0) {
+                    final Slice begin = boundaries.get(i - 1);
+                    final Slice end = i < boundaries.size() ? boundaries.get(i) : null;
+                    futures.add(subcompactionExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call()
+                                throws IOException {
+                            try {
+                                processCompaction(subcompaction, begin, end);
+                            } catch (Throwable e) {
+                                cancelled.set(true);
+                                throw e;
+                            }
+                            return null;
+                        }
+                    }));
                 }
+            }
 
-                if (!drop) {
-                    // Open output file if necessary
-                    if (compactionState.builder == null) {
-                        openCompactionOutputFile(compactionState);
-                    }
-                    if (compactionState.builder.getEntryCount() == 0) {
-                        compactionState.currentSmallest = key;
-                    }
-                    compactionState.currentLargest = key;
-                    compactionState.builder.add(key.encode(), iterator.peek().getValue());
+            processCompaction(subcompactions.get(0), null, boundaries.get(0));
+        } catch (IOException | RuntimeException e) {
+            cancelled.set(true);
+            failure = e;
+        }
 
-                    // Close output file if it is big enough
-                    if (compactionState.builder.getFileSize() >=
-                            compactionState.compaction.getMaxOutputFileSize()) {
-                        finishCompactionOutputFile(compactionState);
+        // Wait for every range, finished, failed or stopped early
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
                     }
+                    break;
                 }
-                iterator.next();
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
 
-            if (shuttingDown.get()) {
-                throw new DbImpl.DatabaseShutdownException("DB shutdown during compaction");
+        if (failure == null) {
+            // Outputs of the ranges are disjoint and already in key order
+            for (CompactionState subcompaction : subcompactions) {
+                compactionState.outputs.addAll(subcompaction.outputs);
+                compactionState.totalBytes += subcompaction.totalBytes;
             }
-            if (compactionState.builder != null) {
-                finishCompactionOutputFile(compactionState);
+            return;
+        }
+
+        // None of the outputs will be installed, release all of them
+        mutex.lock();
+        try {
+            for (CompactionState subcompaction : subcompactions) {
+                cleanupCompaction(subcompaction);
             }
         } finally {
-            mutex.lock();
+            mutex.unlock();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
         }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new DBException("Subcompaction failed", failure);
+        }
+    }
+
+    /**
+     * Merges the compaction inputs with user keys in {@code [begin, end)} into new tables,
+     * {@code null} standing for an open end.
+     */
+    private void processCompaction(CompactionState compactionState, Slice begin, Slice end)
+            throws IOException {
+        MergingIterator iterator = makeInputIterator(compactionState.compaction, begin);
 
-        // todo port CompactionStats code
+        Slice currentUserKey = null;
+        boolean hasCurrentUserKey = false;
 
-        installCompactionResults(compactionState);
+        // the oldest snapshot that sees the previous entry of the current user key
+        long lastSnapshotForKey = NO_SNAPSHOT;
+        while (iterator.hasNext() && !shuttingDown.get() && !compactionState.cancelled.get()) {
+            InternalKey key = iterator.peek().getKey();
+            if (end != null && internalKeyComparator.getUserComparator().compare(key.getUserKey(), end) >= 0) {
+                break;
+            }
+            if (compactionState.compaction.shouldStopBefore(key) && compactionState.builder != null) {
+                finishCompactionOutputFile(compactionState);
+            }
+
+            // Handle key/value, add to state, etc.
+            boolean drop = false;
+            // todo if key doesn't parse (it is corrupted),
+            if (false /*!ParseInternalKey(key, &ikey)*/) {
+                // do not hide error keys
+                currentUserKey = null;
+                hasCurrentUserKey = false;
+                lastSnapshotForKey = NO_SNAPSHOT;
+            } else {
+                if (!hasCurrentUserKey || internalKeyComparator.getUserComparator().compare(key.getUserKey(), currentUserKey) != 0) {
+                    // First occurrence of this user key
+                    currentUserKey = key.getUserKey();
+                    hasCurrentUserKey = true;
+                    lastSnapshotForKey = NO_SNAPSHOT;
+                }
+
+                long snapshot = compactionState.getOldestSnapshotSeeing(key.getSequenceNumber());
+                if (snapshot == lastSnapshotForKey) {
+                    // Hidden by an newer entry for same user key, which every
+                    // snapshot able to see this entry sees instead
+                    drop = true; // (A)
+                } else if (key.getValueType() == DELETION &&
+                        key.getSequenceNumber() <= compactionState.smallestSnapshot &&
+                        compactionState.compaction.isBaseLevelForKey(key.getUserKey())) {
+                    // For this user key:
+                    // (1) there is no data in higher levels
+                    // (2) data in lower levels will have larger sequence numbers
+                    // (3) data in layers that are being compacted here and have
+                    //     smaller sequence numbers will be dropped in the next
+                    //     few iterations of this loop (by rule (A) above).
+                    // Therefore this deletion marker is obsolete and can be dropped.
+                    drop = true;
+                }
+
+                lastSnapshotForKey = snapshot;
+            }
+
+            if (!drop) {
+                // Open output file if necessary
+                if (compactionState.builder == null) {
+                    openCompactionOutputFile(compactionState);
+                }
+                if (compactionState.builder.getEntryCount() == 0) {
+                    compactionState.currentSmallest = key;
+                }
+                compactionState.currentLargest = key;
+                compactionState.builder.add(key.encode(), iterator.peek().getValue());
+
+                // Close output file if it is big enough
+                if (compactionState.builder.getFileSize() >=
+                        compactionState.compaction.getMaxOutputFileSize()) {
+                    finishCompactionOutputFile(compactionState);
+                }
+            }
+            iterator.next();
+        }
+
+        if (shuttingDown.get()) {
+            throw new DbImpl.DatabaseShutdownException("DB shutdown during compaction");
+        }
+        if (compactionState.cancelled.get()) {
+            // another range failed, the caller discards the outputs
+            return;
+        }
+        if (compactionState.builder != null) {
+            finishCompactionOutputFile(compactionState);
+        }
+    }
+
+    /**
+     * Returns an iterator over the compaction inputs positioned at the first entry for
+     * {@code begin}, or at the start if {@code begin} is {@code null}.
+     */
+    private MergingIterator makeInputIterator(Compaction compaction, Slice begin) {
+        if (begin == null) {
+            return versions.makeInputIterator(compaction);
+        }
+
+        // MergingIterator and Level0Iterator keep their old heads when sought,
+        // so position every input first and merge them afterwards
+        InternalKey target = new InternalKey(begin, MAX_SEQUENCE_NUMBER, VALUE);
+        List<InternalIterator> iterators = new ArrayList<>();
+        for (int which = 0; which < 2; which++) {
+            List<FileMetaData> files = compaction.getInputs()[which];
+            if (files.isEmpty()) {
+                continue;
+            }
+            if (compaction.getLevel() + which == 0) {
+                List<InternalTableIterator> tableIterators = new ArrayList<>(files.size());
+                for (FileMetaData file : files) {
+                    InternalTableIterator tableIterator = tableCache.newIterator(file);
+                    tableIterator.seek(target);
+                    tableIterators.add(tableIterator);
+                }
+                iterators.add(new Level0Iterator(tableIterators, internalKeyComparator));
+            } else {
+                LevelIterator levelIterator = Level.createLevelConcatIterator(tableCache, files, internalKeyComparator);
+                levelIterator.seek(target);
+                iterators.add(levelIterator);
+            }
+        }
+        return new MergingIterator(iterators, internalKeyComparator);
     }
 
     private void openCompactionOutputFile(CompactionState compactionState)
@@ -1033,7 +2408,8 @@ public class BedrockDB implements DB {
 
             File file = new File(databaseDir, ExtendedFilename.ldbTableFileName(fileNumber));
             compactionState.outfile = new FileOutputStream(file).getChannel();
-            compactionState.builder = new ExtendedTableBuilder(options, compactionState.outfile, new InternalUserComparator(internalKeyComparator));
+            compactionState.builder = new ExtendedTableBuilder(options, compactionState.outfile, new InternalUserComparator(internalKeyComparator), filterPolicy,
+                    blockCompressionExecutor, compactionState.compaction.getLevel() + 1);
         } finally {
             mutex.unlock();
         }
@@ -1050,6 +2426,7 @@ public class BedrockDB implements DB {
 
         long currentEntries = compactionState.builder.getEntryCount();
         compactionState.builder.finish();
+        recordCompression(compactionState.compaction.getLevel() + 1, compactionState.builder);
 
         long currentBytes = compactionState.builder.getFileSize();
         compactionState.currentFileSize = currentBytes;
@@ -1073,6 +2450,11 @@ public class BedrockDB implements DB {
         }
     }
 
+    private void recordCompression(int level, ExtendedTableBuilder builder) {
+        uncompressedBytesWritten.addAndGet(level, builder.getUncompressedDataSize());
+        compressedBytesWritten.addAndGet(level, builder.getCompressedDataSize());
+    }
+
     private void installCompactionResults(CompactionState compact)
             throws IOException {
         checkState(mutex.isHeldByCurrentThread());
@@ -1087,6 +2469,7 @@ public class BedrockDB implements DB {
 
         try {
             versions.logAndApply(compact.compaction.getEdit());
+            installReadView();
             deleteObsoleteFiles();
         } catch (IOException e) {
             // Compaction failed for some reason.  Simply discard the work and try again later.
@@ -1130,11 +2513,21 @@ public class BedrockDB implements DB {
         return versions.getMaxNextLevelOverlappingBytes();
     }
 
+    /**
+     * Returns the cache of uncompressed data blocks, or {@code null} if
+     * {@link org.iq80.leveldb.Options#cacheSize()} was not set.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
     private static class CompactionState {
         private final Compaction compaction;
 
         private final List<FileMetaData> outputs = new ArrayList<>();
 
+        // sequence numbers of the live snapshots, ascending, ending with MAX_SEQUENCE_NUMBER
+        private long[] snapshots;
         private long smallestSnapshot;
 
         // State kept for output being generated
@@ -1149,6 +2542,9 @@ public class BedrockDB implements DB {
 
         private long totalBytes;
 
+        // shared by the subcompactions of a compaction
+        private AtomicBoolean cancelled = new AtomicBoolean();
+
         private CompactionState(Compaction compaction) {
             this.compaction = compaction;
         }
@@ -1156,12 +2552,26 @@ public class BedrockDB implements DB {
         public Compaction getCompaction() {
             return compaction;
         }
+
+        /**
+         * Returns the sequence number of the oldest snapshot that can see an entry written
+         * at {@code sequence}. Entries of a key seen first by the same snapshot are only ever
+         * read in their newest version.
+         */
+        private long getOldestSnapshotSeeing(long sequence) {
+            int index = Arrays.binarySearch(snapshots, sequence);
+            if (index < 0) {
+                index = -(index + 1);
+            }
+            return snapshots[index];
+        }
     }
 
     private static class ManualCompaction {
         private final int level;
         private final Slice begin;
         private final Slice end;
+        private boolean scheduled;
 
         private ManualCompaction(int level, Slice begin, Slice end) {
             this.level = level;
@@ -1170,6 +2580,37 @@ public class BedrockDB implements DB {
         }
     }
 
+    /**
+     * A compaction handed to the pool, with the user key range of all its inputs.
+     */
+    private final class RunningCompaction {
+        private final Compaction compaction;
+        private final boolean manual;
+        private final Slice smallest;
+        private final Slice largest;
+
+        private RunningCompaction(Compaction compaction, boolean manual) {
+            this.compaction = compaction;
+            this.manual = manual;
+
+            UserComparator userComparator = internalKeyComparator.getUserComparator();
+            Slice smallest = null;
+            Slice largest = null;
+            for (List<FileMetaData> inputs : compaction.getInputs()) {
+                for (FileMetaData file : inputs) {
+                    if (smallest == null || userComparator.compare(file.getSmallest().getUserKey(), smallest) < 0) {
+                        smallest = file.getSmallest().getUserKey();
+                    }
+                    if (largest == null || userComparator.compare(file.getLargest().getUserKey(), largest) > 0) {
+                        largest = file.getLargest().getUserKey();
+                    }
+                }
+            }
+            this.smallest = smallest;
+            this.largest = largest;
+        }
+    }
+
     private WriteBatchImpl readWriteBatch(SliceInput record, int updateSize)
             throws IOException {
         WriteBatchImpl writeBatch = new WriteBatchImpl();
@@ -1196,12 +2637,16 @@ public class BedrockDB implements DB {
         return writeBatch;
     }
 
-    private Slice writeWriteBatch(WriteBatchImpl updates, long sequenceBegin) {
-        Slice record = Slices.allocate(SIZE_OF_LONG + SIZE_OF_INT + updates.getApproximateSize());
+    private Slice writeWriteBatch(List<Writer> group, long sequenceBegin, int updateSize) {
+        int approximateSize = 0;
+        for (Writer writer : group) {
+            approximateSize += writer.batch.getApproximateSize();
+        }
+        Slice record = Slices.allocate(SIZE_OF_LONG + SIZE_OF_INT + approximateSize);
         final SliceOutput sliceOutput = record.output();
         sliceOutput.writeLong(sequenceBegin);
-        sliceOutput.writeInt(updates.size());
-        updates.forEach(new WriteBatchImpl.Handler() {
+        sliceOutput.writeInt(updateSize);
+        WriteBatchImpl.Handler handler = new WriteBatchImpl.Handler() {
             @Override
             public void put(Slice key, Slice value) {
                 sliceOutput.writeByte(VALUE.getPersistentId());
@@ -1214,10 +2659,80 @@ public class BedrockDB implements DB {
                 sliceOutput.writeByte(DELETION.getPersistentId());
                 writeLengthPrefixedBytes(sliceOutput, key);
             }
-        });
+        };
+        for (Writer writer : group) {
+            writer.batch.forEach(handler);
+        }
         return record.slice(0, sliceOutput.size());
     }
 
+    /**
+     * The memtables and version a read goes through, pinned by reference counting. The
+     * database owns one reference until it installs the next view, and the last reference
+     * releases the version so that its files may be deleted.
+     */
+    private static final class ReadView {
+        private final MemTable memTable;
+        private final MemTable immutableMemTable;
+        private final Version version;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private ReadView(MemTable memTable, MemTable immutableMemTable, Version version) {
+            this.memTable = memTable;
+            this.immutableMemTable = immutableMemTable;
+            this.version = version;
+            version.retain();
+        }
+
+        private boolean tryRetain() {
+            while (true) {
+                int count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                version.release();
+            }
+        }
+    }
+
+    private static final class RecoveredBatch {
+        private static final RecoveredBatch END = new RecoveredBatch(0, null);
+
+        private final long sequenceBegin;
+        private final WriteBatchImpl writeBatch;
+
+        private RecoveredBatch(long sequenceBegin, WriteBatchImpl writeBatch) {
+            this.sequenceBegin = sequenceBegin;
+            this.writeBatch = writeBatch;
+        }
+    }
+
+    private static final class Writer {
+        // null to force a memtable switch
+        private final WriteBatchImpl batch;
+        private final boolean sync;
+        private final Condition condition;
+
+        // guarded by mutex
+        private boolean done;
+        private long sequenceEnd;
+        private RuntimeException error;
+
+        private Writer(WriteBatchImpl batch, boolean sync, Condition condition) {
+            this.batch = batch;
+            this.sync = sync;
+            this.condition = condition;
+        }
+    }
+
     private static class InsertIntoHandler
             implements WriteBatchImpl.Handler {
         private long sequence;
@@ -1239,46 +2754,130 @@ public class BedrockDB implements DB {
         }
     }
 
-    private final Object suspensionMutex = new Object();
-    private int suspensionCounter;
-
     @Override
     public void suspendCompactions()
             throws InterruptedException {
-        compactionExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    synchronized (suspensionMutex) {
-                        suspensionCounter++;
-                        suspensionMutex.notifyAll();
-                        while (suspensionCounter > 0 && !compactionExecutor.isShutdown()) {
-                            suspensionMutex.wait(500);
-                        }
-                    }
-                } catch (InterruptedException e) {
+        mutex.lock();
+        try {
+            suspensionCount++;
+            // let the work already started finish
+            try {
+                while (backgroundFlush != null || !runningCompactions.isEmpty()) {
+                    backgroundCondition.await();
                 }
+            } catch (InterruptedException e) {
+                suspensionCount--;
+                maybeScheduleCompaction();
+                throw e;
             }
-        });
-        synchronized (suspensionMutex) {
-            while (suspensionCounter < 1) {
-                suspensionMutex.wait();
-            }
+        } finally {
+            mutex.unlock();
         }
     }
 
     @Override
     public void resumeCompactions() {
-        synchronized (suspensionMutex) {
-            suspensionCounter--;
-            suspensionMutex.notifyAll();
+        mutex.lock();
+        try {
+            checkState(suspensionCount > 0, "compactions are not suspended");
+            suspensionCount--;
+            maybeScheduleCompaction();
+        } finally {
+            mutex.unlock();
         }
     }
 
     @Override
     public void compactRange(byte[] begin, byte[] end)
             throws DBException {
-        throw new UnsupportedOperationException("Not yet implemented");
+        compactRange(begin, end, null);
+    }
+
+    /**
+     * Compacts the keys in {@code [begin, end]} through every level that holds some of them,
+     * dropping overwritten and deleted entries on the way. A {@code null} bound stands for
+     * the first or last key of the database. Stops early if the calling thread is interrupted.
+     */
+    public void compactRange(byte[] begin, byte[] end, CompactRangeListener listener)
+            throws DBException {
+        checkBackgroundException();
+        flushMemTable();
+
+        Slice smallest;
+        Slice largest;
+        int maxLevelWithFiles = 1;
+        mutex.lock();
+        try {
+            Version current = versions.getCurrent();
+            smallest = begin != null ? Slices.wrappedBuffer(begin) : getSmallestUserKey(current);
+            largest = end != null ? Slices.wrappedBuffer(end) : getLargestUserKey(current);
+            if (smallest == null || largest == null) {
+                // no tables at all
+                return;
+            }
+            for (int level = 1; level < NUM_LEVELS; level++) {
+                if (current.overlapInLevel(level, smallest, largest)) {
+                    maxLevelWithFiles = level;
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+
+        for (int level = 0; level < maxLevelWithFiles; level++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            compactRange(level, smallest, largest);
+            checkBackgroundException();
+            if (listener != null) {
+                listener.levelCompacted(level, maxLevelWithFiles - 1);
+            }
+        }
+    }
+
+    /**
+     * Runs {@link #compactRange(byte[], byte[], CompactRangeListener)} on a background thread.
+     * Range compactions started this way run one after another; cancelling the returned
+     * future stops a running one after its current level.
+     */
+    public Future<Void> compactRangeInBackground(final byte[] begin, final byte[] end, final CompactRangeListener listener) {
+        // the caller may reuse the arrays while the compaction is queued
+        final byte[] beginCopy = begin != null ? begin.clone() : null;
+        final byte[] endCopy = end != null ? end.clone() : null;
+        return rangeCompactionExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                compactRange(beginCopy, endCopy, listener);
+                return null;
+            }
+        });
+    }
+
+    private Slice getSmallestUserKey(Version version) {
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        Slice smallest = null;
+        for (int level = 0; level < NUM_LEVELS; level++) {
+            for (FileMetaData file : version.getFiles(level)) {
+                if (smallest == null || userComparator.compare(file.getSmallest().getUserKey(), smallest) < 0) {
+                    smallest = file.getSmallest().getUserKey();
+                }
+            }
+        }
+        return smallest;
+    }
+
+    private Slice getLargestUserKey(Version version) {
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        Slice largest = null;
+        for (int level = 0; level < NUM_LEVELS; level++) {
+            for (FileMetaData file : version.getFiles(level)) {
+                if (largest == null || userComparator.compare(file.getLargest().getUserKey(), largest) > 0) {
+                    largest = file.getLargest().getUserKey();
+                }
+            }
+        }
+        return largest;
     }
 
 
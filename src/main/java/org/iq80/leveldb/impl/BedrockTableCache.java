@@ -21,8 +21,12 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
+import org.iq80.leveldb.table.BlockCache;
 import org.iq80.leveldb.table.ExtendedFileChannelTable;
 import org.iq80.leveldb.table.ExtendedMMapTable;
+import org.iq80.leveldb.table.ExtendedTable;
+import org.iq80.leveldb.table.FilterPolicy;
+import org.iq80.leveldb.table.ScanTableIterator;
 import org.iq80.leveldb.table.Table;
 import org.iq80.leveldb.table.UserComparator;
 import org.iq80.leveldb.util.Closeables;
@@ -36,14 +40,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 public class BedrockTableCache extends TableCache {
     private final LoadingCache<Long, TableAndFile> cache;
     private final Finalizer<Table> finalizer = new Finalizer<>(1);
+    private final BlockCache blockCache;
 
     public BedrockTableCache(final File databaseDir, int tableCacheSize, final UserComparator userComparator, final boolean verifyChecksums) {
+        this(databaseDir, tableCacheSize, userComparator, verifyChecksums, null);
+    }
+
+    public BedrockTableCache(final File databaseDir, int tableCacheSize, final UserComparator userComparator, final boolean verifyChecksums,
+                             final BlockCache blockCache) {
+        this(databaseDir, tableCacheSize, userComparator, verifyChecksums, blockCache, null);
+    }
+
+    public BedrockTableCache(final File databaseDir, int tableCacheSize, final UserComparator userComparator, final boolean verifyChecksums,
+                             final BlockCache blockCache, final FilterPolicy filterPolicy) {
         super(databaseDir, tableCacheSize, userComparator, verifyChecksums);
+        this.blockCache = blockCache;
 
         cache = CacheBuilder.newBuilder()
                 .maximumSize(tableCacheSize)
@@ -55,7 +74,7 @@ public class BedrockTableCache extends TableCache {
                     @Override
                     public TableAndFile load(Long fileNumber)
                             throws IOException {
-                        return new TableAndFile(databaseDir, fileNumber, userComparator, verifyChecksums);
+                        return new TableAndFile(databaseDir, fileNumber, userComparator, verifyChecksums, blockCache, filterPolicy);
                     }
                 });
     }
@@ -70,6 +89,35 @@ public class BedrockTableCache extends TableCache {
         return new InternalTableIterator(getTable(number).iterator());
     }
 
+    /**
+     * Returns an iterator over the table of {@code file} for a scan, which reads
+     * {@code readaheadBlocks} data blocks ahead on {@code executor} and ends before
+     * {@code upperBound}, an encoded internal key, unless it is {@code null}.
+     */
+    public InternalTableIterator newScanIterator(FileMetaData file, ExecutorService executor, int readaheadBlocks, Slice upperBound) {
+        return new ScanTableIterator(getTable(file.getNumber()), executor, readaheadBlocks, upperBound);
+    }
+
+    /**
+     * Returns {@code false} if the filter of the table rules out every entry for the user key
+     * of {@code internalKey}, so that a point lookup can skip the table.
+     */
+    public boolean keyMayMatch(FileMetaData file, Slice internalKey) {
+        Table table = getTable(file.getNumber());
+        return !(table instanceof ExtendedTable) || ((ExtendedTable) table).keyMayMatch(internalKey);
+    }
+
+    /**
+     * Returns the index keys of the table, or an empty list if the table does not expose them.
+     */
+    public List<Slice> getIndexKeys(FileMetaData file) {
+        Table table = getTable(file.getNumber());
+        if (table instanceof ExtendedTable) {
+            return ((ExtendedTable) table).getIndexKeys();
+        }
+        return Collections.emptyList();
+    }
+
     @Override
     public long getApproximateOffsetOf(FileMetaData file, Slice key) {
         return getTable(file.getNumber()).getApproximateOffsetOf(key);
@@ -93,17 +141,28 @@ public class BedrockTableCache extends TableCache {
     public void close() {
         cache.invalidateAll();
         finalizer.destroy();
+        if (blockCache != null) {
+            blockCache.clear();
+        }
     }
 
     @Override
     public void evict(long number) {
         cache.invalidate(number);
+        if (blockCache != null) {
+            blockCache.evict(number);
+        }
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
     }
 
     private static final class TableAndFile {
         private final Table table;
 
-        private TableAndFile(File databaseDir, long fileNumber, UserComparator userComparator, boolean verifyChecksums)
+        private TableAndFile(File databaseDir, long fileNumber, UserComparator userComparator, boolean verifyChecksums,
+                             BlockCache blockCache, FilterPolicy filterPolicy)
                 throws IOException {
             String tableFileName = ExtendedFilename.ldbTableFileName(fileNumber);
             File tableFile = new File(databaseDir, tableFileName);
@@ -112,11 +171,13 @@ public class BedrockTableCache extends TableCache {
                 fis = new FileInputStream(tableFile);
                 FileChannel fileChannel = fis.getChannel();
                 if (BedrockDBFactory.USE_MMAP) {
-                    table = new ExtendedMMapTable(tableFile.getAbsolutePath(), fileChannel, userComparator, verifyChecksums);
+                    table = new ExtendedMMapTable(tableFile.getAbsolutePath(), fileChannel, userComparator, verifyChecksums,
+                            fileNumber, blockCache, filterPolicy);
                     // We can close the channel and input stream as the mapping does not need them
                     Closeables.closeQuietly(fis);
                 } else {
-                    table = new ExtendedFileChannelTable(tableFile.getAbsolutePath(), fileChannel, userComparator, verifyChecksums);
+                    table = new ExtendedFileChannelTable(tableFile.getAbsolutePath(), fileChannel, userComparator, verifyChecksums,
+                            fileNumber, blockCache, filterPolicy);
                 }
             } catch (IOException ioe) {
                 Closeables.closeQuietly(fis);
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+import org.nukkit.leveldb.LatencyHistogram;
+
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+/**
+ * Restricts an iterator to the user keys from a lower bound up to, but excluding, an
+ * upper bound. Either bound may be {@code null}.
+ */
+public class BoundedIteratorAdapter extends ExtendedIteratorAdapter {
+    private final SnapshotSeekingIterator seekingIterator;
+    private final Slice lowerBound;
+    private final Slice upperBound;
+    private final Comparator<Slice> userComparator;
+
+    public BoundedIteratorAdapter(SnapshotSeekingIterator seekingIterator, Slice lowerBound, Slice upperBound,
+                                  Comparator<Slice> userComparator, LatencyHistogram seekLatency) {
+        super(seekingIterator, seekLatency);
+        this.seekingIterator = seekingIterator;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.userComparator = userComparator;
+    }
+
+    @Override
+    protected void seekToFirstInternal() {
+        if (lowerBound != null) {
+            seekingIterator.seek(lowerBound);
+        } else {
+            seekingIterator.seekToFirst();
+        }
+    }
+
+    @Override
+    protected void seekInternal(byte[] targetKey) {
+        Slice target = Slices.wrappedBuffer(targetKey);
+        if (lowerBound != null && userComparator.compare(target, lowerBound) < 0) {
+            target = lowerBound;
+        }
+        seekingIterator.seek(target);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!seekingIterator.hasNext()) {
+            return false;
+        }
+        return upperBound == null || userComparator.compare(seekingIterator.peek().getKey(), upperBound) < 0;
+    }
+
+    @Override
+    public DbEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return super.next();
+    }
+
+    @Override
+    public DbEntry peekNext() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return super.peekNext();
+    }
+}
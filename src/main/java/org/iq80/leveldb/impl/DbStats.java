@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.nukkit.leveldb.WriteStall;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.iq80.leveldb.impl.DbConstants.NUM_LEVELS;
+
+/**
+ * Counters behind the {@code leveldb.stats} property: the work of flushes and compactions
+ * per output level and the time writers spent stalled. Updated and read without locking,
+ * so the property is cheap to poll.
+ */
+final class DbStats {
+    private final AtomicLongArray compactions = new AtomicLongArray(NUM_LEVELS);
+    private final AtomicLongArray compactionMicros = new AtomicLongArray(NUM_LEVELS);
+    private final AtomicLongArray bytesRead = new AtomicLongArray(NUM_LEVELS);
+    private final AtomicLongArray bytesWritten = new AtomicLongArray(NUM_LEVELS);
+    private final AtomicLongArray stalls = new AtomicLongArray(WriteStall.values().length);
+    private final AtomicLongArray stallMicros = new AtomicLongArray(WriteStall.values().length);
+
+    /**
+     * Records a flush or compaction writing to {@code level}.
+     */
+    void recordCompaction(int level, long micros, long read, long written) {
+        compactions.incrementAndGet(level);
+        compactionMicros.addAndGet(level, micros);
+        bytesRead.addAndGet(level, read);
+        bytesWritten.addAndGet(level, written);
+    }
+
+    void recordStall(WriteStall stall, long micros) {
+        stalls.incrementAndGet(stall.ordinal());
+        stallMicros.addAndGet(stall.ordinal(), micros);
+    }
+
+    long getCompactions(int level) {
+        return compactions.get(level);
+    }
+
+    long getCompactionMicros(int level) {
+        return compactionMicros.get(level);
+    }
+
+    long getBytesRead(int level) {
+        return bytesRead.get(level);
+    }
+
+    long getBytesWritten(int level) {
+        return bytesWritten.get(level);
+    }
+
+    long getStalls(WriteStall stall) {
+        return stalls.get(stall.ordinal());
+    }
+
+    long getStallMicros(WriteStall stall) {
+        return stallMicros.get(stall.ordinal());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.iq80.leveldb.util.Slice;
+import org.nukkit.leveldb.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Iterator adapter that can also hand out the next key and value as buffers viewing the
+ * table block or memtable entry they are stored in, without copying them to a new array.
+ */
+public class ExtendedIteratorAdapter extends SeekingIteratorAdapter {
+    private final LatencyHistogram seekLatency;
+
+    public ExtendedIteratorAdapter(SnapshotSeekingIterator seekingIterator, LatencyHistogram seekLatency) {
+        super(seekingIterator);
+        this.seekLatency = seekLatency;
+    }
+
+    @Override
+    public final void seekToFirst() {
+        long start = System.nanoTime();
+        seekToFirstInternal();
+        seekLatency.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public final void seek(byte[] targetKey) {
+        long start = System.nanoTime();
+        seekInternal(targetKey);
+        seekLatency.record(System.nanoTime() - start);
+    }
+
+    protected void seekToFirstInternal() {
+        super.seekToFirst();
+    }
+
+    protected void seekInternal(byte[] targetKey) {
+        super.seek(targetKey);
+    }
+
+    /**
+     * Returns a read-only, little-endian view of the next key.
+     */
+    public ByteBuffer peekNextKeyBuffer() {
+        return asReadOnlyBuffer(peekNext().getKeySlice());
+    }
+
+    /**
+     * Returns a read-only, little-endian view of the next value, such as a subchunk payload
+     * to be parsed in place.
+     */
+    public ByteBuffer peekNextValueBuffer() {
+        return asReadOnlyBuffer(peekNext().getValueSlice());
+    }
+
+    static ByteBuffer asReadOnlyBuffer(Slice slice) {
+        // the slice may start anywhere in the block, the view starts at its first byte
+        return slice.toByteBuffer().slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.iq80.leveldb.table.BytewiseComparator;
+import org.iq80.leveldb.table.UserComparator;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static java.util.Objects.requireNonNull;
+import static org.iq80.leveldb.util.SizeOf.SIZE_OF_INT;
+import static org.iq80.leveldb.util.SizeOf.SIZE_OF_LONG;
+
+/**
+ * Memtable keeping its entries in direct memory instead of as heap objects, so a full
+ * write buffer costs the garbage collector a handful of blocks rather than millions of
+ * small objects.
+ * <p>
+ * The entries form a skip list like the one of LevelDB: each entry is appended to an arena
+ * of direct blocks and the towers of links between them are kept in a few large int arrays,
+ * whose ordered writes publish new entries to concurrent readers. Entries are added by one
+ * thread at a time, as the database does, and with the bytewise comparator adding one
+ * allocates nothing but the occasional new block. Reads copy the keys and values they
+ * return to the heap.
+ */
+public class OffHeapMemTable extends MemTable {
+    private static final int MAX_HEIGHT = 12;
+    private static final int BRANCHING = 4;
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int LINK_CHUNK_SIZE = 1 << 16;
+
+    // a node is its entry address followed by its tower of next nodes, 0 ending a list
+    private static final int NODE_BLOCK = 0;
+    private static final int NODE_OFFSET = 1;
+    private static final int NODE_TOWER = 2;
+    private static final int HEAD = 1;
+
+    // an entry is its tag (sequence and value type), the lengths, the key and the value
+    private static final int ENTRY_HEADER = SIZE_OF_LONG + SIZE_OF_INT + SIZE_OF_INT;
+
+    private final UserComparator userComparator;
+    private final boolean bytewise;
+
+    private volatile ByteBuffer[] blocks = new ByteBuffer[0];
+    private volatile AtomicIntegerArray[] linkChunks = new AtomicIntegerArray[0];
+    private volatile int maxHeight = 1;
+    private volatile long memoryUsage;
+
+    // writer state
+    private ByteBuffer writeBuffer;
+    private int nextLink;
+    private int random = 0xdeadbeef;
+    private final int[] splice = new int[MAX_HEIGHT];
+
+    public OffHeapMemTable(InternalKeyComparator internalKeyComparator) {
+        super(internalKeyComparator);
+        this.userComparator = internalKeyComparator.getUserComparator();
+        this.bytewise = userComparator instanceof BytewiseComparator;
+        // the first node allocated, the head, is HEAD
+        allocateNode(MAX_HEIGHT);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return next(HEAD, 0) == 0;
+    }
+
+    @Override
+    public long approximateMemoryUsage() {
+        return memoryUsage;
+    }
+
+    @Override
+    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value) {
+        requireNonNull(valueType, "valueType is null");
+        requireNonNull(key, "key is null");
+        requireNonNull(value, "value is null");
+
+        int height = randomHeight();
+        int previous = HEAD;
+        for (int level = maxHeight - 1; level >= 0; level--) {
+            int next = next(previous, level);
+            while (next != 0 && compare(next, key, sequenceNumber) < 0) {
+                previous = next;
+                next = next(previous, level);
+            }
+            splice[level] = previous;
+        }
+        if (height > maxHeight) {
+            for (int level = maxHeight; level < height; level++) {
+                splice[level] = HEAD;
+            }
+            // readers seeing the new height early find the head's empty links
+            maxHeight = height;
+        }
+
+        long address = appendEntry(sequenceNumber << 8 | valueType.getPersistentId(), key, value);
+        int node = allocateNode(height);
+        AtomicIntegerArray links = linkChunk(node);
+        int index = linkIndex(node);
+        links.lazySet(index + NODE_BLOCK, (int) (address >>> 32));
+        links.lazySet(index + NODE_OFFSET, (int) address);
+        for (int level = 0; level < height; level++) {
+            links.lazySet(index + NODE_TOWER + level, next(splice[level], level));
+            // publishes the node and its entry to readers following this link
+            linkChunk(splice[level]).lazySet(linkIndex(splice[level]) + NODE_TOWER + level, node);
+        }
+        memoryUsage += ENTRY_HEADER + key.length() + value.length() + (NODE_TOWER + height) * SIZE_OF_INT;
+    }
+
+    @Override
+    public LookupResult get(LookupKey key) {
+        requireNonNull(key, "key is null");
+
+        int node = findGreaterOrEqual(key.getUserKey(), key.getInternalKey().getSequenceNumber());
+        if (node == 0 || compareUserKey(node, key.getUserKey()) != 0) {
+            return null;
+        }
+        if (valueType(node) == ValueType.DELETION) {
+            return LookupResult.deleted(key);
+        }
+        return LookupResult.ok(key, value(node));
+    }
+
+    @Override
+    public MemTableIterator iterator() {
+        return new OffHeapMemTableIterator();
+    }
+
+    private int findGreaterOrEqual(Slice userKey, long sequenceNumber) {
+        int node = HEAD;
+        for (int level = maxHeight - 1; level >= 0; level--) {
+            int next = next(node, level);
+            while (next != 0 && compare(next, userKey, sequenceNumber) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            if (level == 0) {
+                return next;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Compares the entry of {@code node} with a key in internal key order: user keys
+     * ascending, then sequence numbers descending.
+     */
+    private int compare(int node, Slice userKey, long sequenceNumber) {
+        int result = compareUserKey(node, userKey);
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(sequenceNumber, tag(node) >>> 8);
+    }
+
+    private int compareUserKey(int node, Slice userKey) {
+        if (!bytewise) {
+            return userComparator.compare(key(node), userKey);
+        }
+        ByteBuffer block = block(node);
+        int offset = entryOffset(node);
+        int length = block.getInt(offset + SIZE_OF_LONG);
+        int position = offset + ENTRY_HEADER;
+        byte[] bytes = userKey.getRawArray();
+        int bytesOffset = userKey.getRawOffset();
+        int minLength = Math.min(length, userKey.length());
+        for (int i = 0; i < minLength; i++) {
+            int result = (block.get(position + i) & 0xff) - (bytes[bytesOffset + i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return length - userKey.length();
+    }
+
+    private long tag(int node) {
+        return block(node).getLong(entryOffset(node));
+    }
+
+    private ValueType valueType(int node) {
+        return ValueType.getValueTypeByPersistentId((int) (tag(node) & 0xff));
+    }
+
+    private Slice key(int node) {
+        ByteBuffer block = block(node);
+        int offset = entryOffset(node);
+        return copy(block, offset + ENTRY_HEADER, block.getInt(offset + SIZE_OF_LONG));
+    }
+
+    private Slice value(int node) {
+        ByteBuffer block = block(node);
+        int offset = entryOffset(node);
+        int keyLength = block.getInt(offset + SIZE_OF_LONG);
+        return copy(block, offset + ENTRY_HEADER + keyLength, block.getInt(offset + SIZE_OF_LONG + SIZE_OF_INT));
+    }
+
+    private static Slice copy(ByteBuffer block, int position, int length) {
+        if (length == 0) {
+            return Slices.EMPTY_SLICE;
+        }
+        ByteBuffer source = block.duplicate();
+        source.position(position).limit(position + length);
+        byte[] bytes = new byte[length];
+        source.get(bytes);
+        return Slices.wrappedBuffer(bytes);
+    }
+
+    private ByteBuffer block(int node) {
+        return blocks[linkChunk(node).get(linkIndex(node) + NODE_BLOCK)];
+    }
+
+    private int entryOffset(int node) {
+        return linkChunk(node).get(linkIndex(node) + NODE_OFFSET);
+    }
+
+    private int next(int node, int level) {
+        return linkChunk(node).get(linkIndex(node) + NODE_TOWER + level);
+    }
+
+    private AtomicIntegerArray linkChunk(int node) {
+        return linkChunks[node / LINK_CHUNK_SIZE];
+    }
+
+    private static int linkIndex(int node) {
+        return node % LINK_CHUNK_SIZE;
+    }
+
+    /**
+     * Appends an entry to the arena and returns its block index and offset packed in a long.
+     */
+    private long appendEntry(long tag, Slice key, Slice value) {
+        int length = ENTRY_HEADER + key.length() + value.length();
+        if (writeBuffer == null || writeBuffer.remaining() < length) {
+            ByteBuffer block = ByteBuffer.allocateDirect(Math.max(BLOCK_SIZE, length)).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+            grown[blocks.length] = block;
+            blocks = grown;
+            writeBuffer = block.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int offset = writeBuffer.position();
+        writeBuffer.putLong(tag);
+        writeBuffer.putInt(key.length());
+        writeBuffer.putInt(value.length());
+        key.getBytes(0, writeBuffer);
+        value.getBytes(0, writeBuffer);
+        return (long) (blocks.length - 1) << 32 | offset;
+    }
+
+    private int allocateNode(int height) {
+        int size = NODE_TOWER + height;
+        if (nextLink + size > linkChunks.length * LINK_CHUNK_SIZE) {
+            AtomicIntegerArray[] grown = Arrays.copyOf(linkChunks, linkChunks.length + 1);
+            grown[linkChunks.length] = new AtomicIntegerArray(LINK_CHUNK_SIZE);
+            linkChunks = grown;
+            // slot 0 of every chunk stays unused, so no node is 0
+            nextLink = (linkChunks.length - 1) * LINK_CHUNK_SIZE + 1;
+        }
+        int node = nextLink;
+        nextLink += size;
+        return node;
+    }
+
+    private int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && (nextRandom() % BRANCHING) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    private int nextRandom() {
+        // xorshift, the writer's own so adding allocates nothing
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return random & Integer.MAX_VALUE;
+    }
+
+    private class OffHeapMemTableIterator extends MemTableIterator {
+        private int node;
+        private InternalEntry entry;
+
+        private OffHeapMemTableIterator() {
+            seekToFirst();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return node != 0;
+        }
+
+        @Override
+        public void seekToFirst() {
+            position(OffHeapMemTable.this.next(HEAD, 0));
+        }
+
+        @Override
+        public void seek(InternalKey targetKey) {
+            position(findGreaterOrEqual(targetKey.getUserKey(), targetKey.getSequenceNumber()));
+        }
+
+        @Override
+        public InternalEntry peek() {
+            if (node == 0) {
+                throw new NoSuchElementException();
+            }
+            if (entry == null) {
+                long tag = tag(node);
+                InternalKey internalKey = new InternalKey(key(node), tag >>> 8, ValueType.getValueTypeByPersistentId((int) (tag & 0xff)));
+                entry = new InternalEntry(internalKey, value(node));
+            }
+            return entry;
+        }
+
+        @Override
+        public InternalEntry next() {
+            InternalEntry next = peek();
+            position(OffHeapMemTable.this.next(node, 0));
+            return next;
+        }
+
+        private void position(int node) {
+            this.node = node;
+            this.entry = null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.iq80.leveldb.util.Slice;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static org.iq80.leveldb.util.SizeOf.SIZE_OF_LONG;
+
+/**
+ * Memtable hashing the keys by a fixed length prefix, such as the x and z coordinates of a
+ * chunk, into small skip lists. A lookup hashes straight to the few keys sharing its prefix
+ * instead of descending one skip list over the whole table, which pays off when the same
+ * chunks are saved over and over.
+ * <p>
+ * Keys shorter than the prefix are bucketed by themselves. Buckets are also indexed in
+ * bytewise order of their prefixes for iteration, so this memtable must only be used with
+ * the bytewise comparator.
+ */
+public class PrefixHashMemTable extends MemTable {
+    private final InternalKeyComparator internalKeyComparator;
+    private final int prefixLength;
+    private final ConcurrentHashMap<Slice, ConcurrentSkipListMap<InternalKey, Slice>> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Slice, ConcurrentSkipListMap<InternalKey, Slice>> orderedBuckets;
+    private volatile long approximateMemoryUsage;
+
+    public PrefixHashMemTable(InternalKeyComparator internalKeyComparator, int prefixLength) {
+        super(internalKeyComparator);
+        checkArgument(prefixLength > 0, "prefixLength must be positive");
+        this.internalKeyComparator = internalKeyComparator;
+        this.prefixLength = prefixLength;
+        this.orderedBuckets = new ConcurrentSkipListMap<>(internalKeyComparator.getUserComparator());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return buckets.isEmpty();
+    }
+
+    @Override
+    public long approximateMemoryUsage() {
+        return approximateMemoryUsage;
+    }
+
+    @Override
+    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value) {
+        requireNonNull(valueType, "valueType is null");
+        requireNonNull(key, "key is null");
+        requireNonNull(value, "value is null");
+
+        Slice prefix = prefix(key);
+        ConcurrentSkipListMap<InternalKey, Slice> bucket = buckets.get(prefix);
+        if (bucket == null) {
+            // only the writer creates buckets
+            bucket = new ConcurrentSkipListMap<>(internalKeyComparator);
+            orderedBuckets.put(prefix, bucket);
+            buckets.put(prefix, bucket);
+        }
+        bucket.put(new InternalKey(key, sequenceNumber, valueType), value);
+
+        approximateMemoryUsage += key.length() + SIZE_OF_LONG + value.length();
+    }
+
+    @Override
+    public LookupResult get(LookupKey key) {
+        requireNonNull(key, "key is null");
+
+        ConcurrentSkipListMap<InternalKey, Slice> bucket = buckets.get(prefix(key.getUserKey()));
+        if (bucket == null) {
+            return null;
+        }
+        Entry<InternalKey, Slice> entry = bucket.ceilingEntry(key.getInternalKey());
+        if (entry == null) {
+            return null;
+        }
+
+        InternalKey entryKey = entry.getKey();
+        if (entryKey.getUserKey().equals(key.getUserKey())) {
+            if (entryKey.getValueType() == ValueType.DELETION) {
+                return LookupResult.deleted(key);
+            }
+            return LookupResult.ok(key, entry.getValue());
+        }
+        return null;
+    }
+
+    @Override
+    public MemTableIterator iterator() {
+        return new PrefixHashMemTableIterator();
+    }
+
+    private Slice prefix(Slice key) {
+        return key.length() > prefixLength ? key.slice(0, prefixLength) : key;
+    }
+
+    /**
+     * Walks the buckets in prefix order, which is the order of their keys: every key of a
+     * bucket starts with its prefix, and keys shorter than the prefix sort before all keys
+     * they are a prefix of.
+     */
+    private class PrefixHashMemTableIterator extends MemTableIterator {
+        private Iterator<ConcurrentSkipListMap<InternalKey, Slice>> bucketIterator;
+        private Iterator<Entry<InternalKey, Slice>> entryIterator;
+        private InternalEntry next;
+
+        private PrefixHashMemTableIterator() {
+            seekToFirst();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            while (!entryIterator.hasNext()) {
+                if (!bucketIterator.hasNext()) {
+                    return false;
+                }
+                entryIterator = bucketIterator.next().entrySet().iterator();
+            }
+            Entry<InternalKey, Slice> entry = entryIterator.next();
+            next = new InternalEntry(entry.getKey(), entry.getValue());
+            return true;
+        }
+
+        @Override
+        public void seekToFirst() {
+            bucketIterator = orderedBuckets.values().iterator();
+            entryIterator = Collections.emptyIterator();
+            next = null;
+        }
+
+        @Override
+        public void seek(InternalKey targetKey) {
+            // only the bucket of the target itself may hold keys before it
+            Slice prefix = prefix(targetKey.getUserKey());
+            ConcurrentSkipListMap<InternalKey, Slice> bucket = orderedBuckets.get(prefix);
+            if (bucket != null) {
+                entryIterator = bucket.tailMap(targetKey).entrySet().iterator();
+            } else {
+                entryIterator = Collections.emptyIterator();
+            }
+            bucketIterator = orderedBuckets.tailMap(prefix, false).values().iterator();
+            next = null;
+        }
+
+        @Override
+        public InternalEntry peek() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return next;
+        }
+
+        @Override
+        public InternalEntry next() {
+            InternalEntry entry = peek();
+            next = null;
+            return entry;
+        }
+    }
+}
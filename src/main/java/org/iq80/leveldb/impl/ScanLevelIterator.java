@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.iq80.leveldb.util.InternalTableIterator;
+import org.iq80.leveldb.util.LevelIterator;
+import org.iq80.leveldb.util.Slice;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Iterates the tables of a level like {@link LevelIterator}, opening each one through
+ * {@link BedrockTableCache#newScanIterator} when the iteration reaches it. As the tables of a
+ * level do not overlap, the merging iterator can take it as if it were a single table.
+ */
+class ScanLevelIterator extends InternalTableIterator {
+    private final BedrockTableCache tableCache;
+    private final List<FileMetaData> files;
+    private final InternalKeyComparator comparator;
+    private final ExecutorService executor;
+    private final int readaheadBlocks;
+    private final Slice upperBound;
+    private InternalTableIterator current;
+    private int index;
+
+    ScanLevelIterator(BedrockTableCache tableCache, List<FileMetaData> files, InternalKeyComparator comparator,
+                      ExecutorService executor, int readaheadBlocks, Slice upperBound) {
+        // every method reading the table iterator of the superclass is overridden
+        super(null);
+        this.tableCache = tableCache;
+        this.files = files;
+        this.comparator = comparator;
+        this.executor = executor;
+        this.readaheadBlocks = readaheadBlocks;
+        this.upperBound = upperBound;
+    }
+
+    @Override
+    protected void seekToFirstInternal() {
+        index = 0;
+        current = null;
+    }
+
+    @Override
+    public void seekInternal(InternalKey targetKey) {
+        // the first table whose largest key is at or after the target
+        int left = 0;
+        int right = files.size();
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            if (comparator.compare(files.get(mid).getLargest(), targetKey) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        index = left;
+        if (index < files.size()) {
+            current = openNextFile();
+            current.seek(targetKey);
+        } else {
+            current = null;
+        }
+    }
+
+    @Override
+    protected Entry<InternalKey, Slice> getNextElement() {
+        while (current == null || !current.hasNext()) {
+            if (index == files.size()) {
+                current = null;
+                return null;
+            }
+            current = openNextFile();
+        }
+        return current.next();
+    }
+
+    private InternalTableIterator openNextFile() {
+        return tableCache.newScanIterator(files.get(index++), executor, readaheadBlocks, upperBound);
+    }
+
+    @Override
+    public String toString() {
+        return "ScanLevelIterator{index=" + index + ", files=" + files + ", current=" + current + '}';
+    }
+}
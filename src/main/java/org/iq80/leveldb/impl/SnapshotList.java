@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+/**
+ * The live snapshots of a database ordered by sequence number, so that compactions
+ * know which overwritten entries and deletion markers may still be read.
+ * Snapshots leave the list when they are closed.
+ */
+final class SnapshotList {
+    // oldest and newest ends of a doubly linked list
+    private TrackedSnapshot oldest;
+    private TrackedSnapshot newest;
+    private int size;
+
+    synchronized SnapshotImpl newSnapshot(Version version, long sequence) {
+        TrackedSnapshot snapshot = new TrackedSnapshot(version, sequence);
+
+        // snapshots are nearly always taken at the newest sequence
+        TrackedSnapshot previous = newest;
+        while (previous != null && previous.getLastSequence() > sequence) {
+            previous = previous.previous;
+        }
+        snapshot.previous = previous;
+        snapshot.next = previous != null ? previous.next : oldest;
+        if (snapshot.previous != null) {
+            snapshot.previous.next = snapshot;
+        } else {
+            oldest = snapshot;
+        }
+        if (snapshot.next != null) {
+            snapshot.next.previous = snapshot;
+        } else {
+            newest = snapshot;
+        }
+        size++;
+        return snapshot;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the sequence numbers of all live snapshots in ascending order, followed by
+     * {@code readSequence}, the sequence read by readers without a snapshot.
+     */
+    synchronized long[] getSequences(long readSequence) {
+        long[] sequences = new long[size + 1];
+        int i = 0;
+        for (TrackedSnapshot snapshot = oldest; snapshot != null; snapshot = snapshot.next) {
+            sequences[i++] = snapshot.getLastSequence();
+        }
+        sequences[i] = readSequence;
+        return sequences;
+    }
+
+    private synchronized void remove(TrackedSnapshot snapshot) {
+        if (!snapshot.live) {
+            return;
+        }
+        snapshot.live = false;
+        if (snapshot.previous != null) {
+            snapshot.previous.next = snapshot.next;
+        } else {
+            oldest = snapshot.next;
+        }
+        if (snapshot.next != null) {
+            snapshot.next.previous = snapshot.previous;
+        } else {
+            newest = snapshot.previous;
+        }
+        snapshot.previous = null;
+        snapshot.next = null;
+        size--;
+    }
+
+    private final class TrackedSnapshot extends SnapshotImpl {
+        private TrackedSnapshot previous;
+        private TrackedSnapshot next;
+        private boolean live = true;
+
+        private TrackedSnapshot(Version version, long lastSequence) {
+            super(version, lastSequence);
+        }
+
+        @Override
+        public void close() {
+            remove(this);
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A cache of uncompressed data blocks keyed by table file number and block offset.
+ * <p>
+ * The cache is split into independently locked shards. Each shard evicts with S3-FIFO:
+ * new blocks enter a small probationary queue and are only promoted to the main queue if
+ * they are read again before reaching its head, so a one-off scan cannot flush the hot
+ * working set. Lookups never lock; inserts and evictions lock only their own shard.
+ */
+public final class BlockCache {
+
+    private static final int MAX_SHARD_BITS = 6;
+    private static final long MIN_SHARD_CAPACITY = 512 * 1024;
+
+    // bytes charged for a cached block on top of its contents
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Shard[] shards;
+    private final int shardMask;
+    private final long capacity;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BlockCache(long capacity) {
+        this(capacity, defaultShardBits(capacity));
+    }
+
+    public BlockCache(long capacity, int shardBits) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        checkArgument(shardBits >= 0 && shardBits <= MAX_SHARD_BITS, "shardBits must be between 0 and %s", MAX_SHARD_BITS);
+
+        this.capacity = capacity;
+        int shardCount = 1 << shardBits;
+        this.shardMask = shardCount - 1;
+        this.shards = new Shard[shardCount];
+        long shardCapacity = (capacity + shardCount - 1) / shardCount;
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(shardCapacity);
+        }
+    }
+
+    private static int defaultShardBits(long capacity) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int shardBits = 0;
+        while (shardBits < MAX_SHARD_BITS &&
+                (1 << shardBits) < cores * 2 &&
+                (capacity >> (shardBits + 1)) >= MIN_SHARD_CAPACITY) {
+            shardBits++;
+        }
+        return shardBits;
+    }
+
+    public Block get(long fileNumber, long offset) {
+        Key key = new Key(fileNumber, offset);
+        Node node = shardFor(key).map.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        node.touch();
+        hits.increment();
+        return node.block;
+    }
+
+    public void put(long fileNumber, long offset, Block block) {
+        requireNonNull(block, "block is null");
+        Key key = new Key(fileNumber, offset);
+        shardFor(key).put(key, block);
+    }
+
+    /**
+     * Drops every block of the specified table, e.g. once the file has been deleted.
+     */
+    public void evict(long fileNumber) {
+        for (Shard shard : shards) {
+            shard.evictFile(fileNumber);
+        }
+    }
+
+    public void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getUsage() {
+        long usage = 0;
+        for (Shard shard : shards) {
+            usage += shard.usage();
+        }
+        return usage;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long requestCount = hitCount + misses.sum();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    private Shard shardFor(Key key) {
+        return shards[key.hashCode() & shardMask];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BlockCache");
+        sb.append("{capacity=").append(capacity);
+        sb.append(", usage=").append(getUsage());
+        sb.append(", shards=").append(shards.length);
+        sb.append(", hits=").append(getHitCount());
+        sb.append(", misses=").append(getMissCount());
+        sb.append(", evictions=").append(getEvictionCount());
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private final class Shard {
+        private final ConcurrentHashMap<Key, Node> map = new ConcurrentHashMap<>();
+        private final long capacity;
+        private final long smallCapacity;
+
+        // guarded by this
+        private final ArrayDeque<Node> small = new ArrayDeque<>();
+        private final ArrayDeque<Node> main = new ArrayDeque<>();
+        private final GhostQueue ghost = new GhostQueue();
+        private long smallUsage;
+        private long mainUsage;
+
+        private Shard(long capacity) {
+            this.capacity = capacity;
+            this.smallCapacity = Math.max(1, capacity / 10);
+        }
+
+        private synchronized long usage() {
+            return smallUsage + mainUsage;
+        }
+
+        private synchronized void put(Key key, Block block) {
+            if (map.containsKey(key)) {
+                // another reader loaded the same block first
+                return;
+            }
+            int weight = (int) block.size() + ENTRY_OVERHEAD;
+            if (weight > capacity) {
+                return;
+            }
+
+            Node node = new Node(key, block, weight);
+            if (ghost.remove(key)) {
+                // evicted recently without a second access; it is part of the working set after all
+                node.inMain = true;
+                main.addLast(node);
+                mainUsage += weight;
+            } else {
+                small.addLast(node);
+                smallUsage += weight;
+            }
+            map.put(key, node);
+
+            while (smallUsage + mainUsage > capacity) {
+                if (smallUsage > smallCapacity || main.isEmpty()) {
+                    evictSmall();
+                } else {
+                    evictMain();
+                }
+            }
+        }
+
+        private void evictSmall() {
+            Node node = small.pollFirst();
+            if (node == null || node.removed) {
+                return;
+            }
+            smallUsage -= node.weight;
+            if (node.frequency > 0) {
+                node.frequency = 0;
+                node.inMain = true;
+                main.addLast(node);
+                mainUsage += node.weight;
+            } else {
+                ghost.add(node.key, map.size());
+                remove(node);
+            }
+        }
+
+        private void evictMain() {
+            Node node = main.pollFirst();
+            if (node == null || node.removed) {
+                return;
+            }
+            if (node.frequency > 0) {
+                node.frequency--;
+                main.addLast(node);
+            } else {
+                mainUsage -= node.weight;
+                remove(node);
+            }
+        }
+
+        private void remove(Node node) {
+            node.removed = true;
+            map.remove(node.key, node);
+            evictions.increment();
+        }
+
+        private synchronized void evictFile(long fileNumber) {
+            for (Iterator<Node> iterator = map.values().iterator(); iterator.hasNext(); ) {
+                Node node = iterator.next();
+                if (node.key.fileNumber == fileNumber) {
+                    iterator.remove();
+                    node.removed = true;
+                    if (node.inMain) {
+                        mainUsage -= node.weight;
+                    } else {
+                        smallUsage -= node.weight;
+                    }
+                }
+            }
+        }
+
+        private synchronized void clear() {
+            map.clear();
+            small.clear();
+            main.clear();
+            ghost.clear();
+            smallUsage = 0;
+            mainUsage = 0;
+        }
+    }
+
+    /**
+     * Remembers the keys most recently evicted from the probationary queue,
+     * bounded by the number of resident blocks.
+     */
+    private static final class GhostQueue {
+        private final ArrayDeque<Key> order = new ArrayDeque<>();
+        private final Set<Key> keys = new HashSet<>();
+
+        private void add(Key key, int limit) {
+            if (keys.add(key)) {
+                order.addLast(key);
+            }
+            while (order.size() > Math.max(1, limit)) {
+                keys.remove(order.pollFirst());
+            }
+        }
+
+        private boolean remove(Key key) {
+            // the key stays in the order queue until it reaches the head; a stale entry can
+            // retire a re-added key early, which only costs that block one promotion
+            return keys.remove(key);
+        }
+
+        private void clear() {
+            order.clear();
+            keys.clear();
+        }
+    }
+
+    private static final class Node {
+        private final Key key;
+        private final Block block;
+        private final int weight;
+
+        // racy saturating counter; a lost increment only makes eviction slightly less accurate
+        private volatile int frequency;
+
+        // guarded by the shard
+        private boolean inMain;
+        private boolean removed;
+
+        private Node(Key key, Block block, int weight) {
+            this.key = key;
+            this.block = block;
+            this.weight = weight;
+        }
+
+        private void touch() {
+            int current = frequency;
+            if (current < 3) {
+                frequency = current + 1;
+            }
+        }
+    }
+
+    private static final class Key {
+        private final long fileNumber;
+        private final long offset;
+
+        private Key(long fileNumber, long offset) {
+            this.fileNumber = fileNumber;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return fileNumber == key.fileNumber && offset == key.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = fileNumber * 0x9E3779B97F4A7C15L + offset;
+            hash ^= hash >>> 32;
+            hash *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (hash ^ (hash >>> 29));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import org.iq80.leveldb.util.Slice;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The bloom filter of the original C++ implementation, readable by Bedrock
+ * and any other leveldb build as {@code filter.leveldb.BuiltinBloomFilter2}.
+ */
+public class BloomFilterPolicy implements FilterPolicy {
+    private static final int HASH_SEED = 0xbc9f1d34;
+
+    private final int bitsPerKey;
+    private final int k;
+
+    public BloomFilterPolicy(int bitsPerKey) {
+        checkArgument(bitsPerKey > 0, "bitsPerKey must be positive");
+        this.bitsPerKey = bitsPerKey;
+        // We intentionally round down to reduce probing cost a little bit
+        // 0.69 =~ ln(2)
+        this.k = Math.max(1, Math.min(30, (int) (bitsPerKey * 0.69)));
+    }
+
+    public int getBitsPerKey() {
+        return bitsPerKey;
+    }
+
+    @Override
+    public String name() {
+        return "leveldb.BuiltinBloomFilter2";
+    }
+
+    @Override
+    public byte[] createFilter(List<Slice> keys) {
+        // Compute bloom filter size (in both bits and bytes)
+        // For small n, we can see a very high false positive rate. Fix it
+        // by enforcing a minimum bloom filter length.
+        int bits = Math.max(64, keys.size() * bitsPerKey);
+        int bytes = (bits + 7) / 8;
+        bits = bytes * 8;
+
+        byte[] filter = new byte[bytes + 1];
+        // Remember # of probes in filter
+        filter[bytes] = (byte) k;
+        for (Slice key : keys) {
+            // Use double-hashing to generate a sequence of hash values.
+            int h = hash(key);
+            int delta = (h >>> 17) | (h << 15);  // Rotate right 17 bits
+            for (int j = 0; j < k; j++) {
+                int bitPosition = (int) (Integer.toUnsignedLong(h) % bits);
+                filter[bitPosition / 8] |= (1 << (bitPosition % 8));
+                h += delta;
+            }
+        }
+        return filter;
+    }
+
+    @Override
+    public boolean keyMayMatch(Slice key, Slice filter) {
+        int length = filter.length();
+        if (length < 2) {
+            return false;
+        }
+
+        int bits = (length - 1) * 8;
+
+        // Use the encoded k so that we can read filters generated by
+        // bloom filters created using different parameters.
+        int k = filter.getUnsignedByte(length - 1);
+        if (k > 30) {
+            // Reserved for potentially new encodings for short bloom filters.
+            // Consider it a match.
+            return true;
+        }
+
+        int h = hash(key);
+        int delta = (h >>> 17) | (h << 15);  // Rotate right 17 bits
+        for (int j = 0; j < k; j++) {
+            int bitPosition = (int) (Integer.toUnsignedLong(h) % bits);
+            if ((filter.getByte(bitPosition / 8) & (1 << (bitPosition % 8))) == 0) {
+                return false;
+            }
+            h += delta;
+        }
+        return true;
+    }
+
+    /**
+     * The murmur-like hash of the C++ implementation, {@code Hash(data, n, 0xbc9f1d34)}.
+     */
+    @SuppressWarnings("fallthrough")
+    static int hash(Slice key) {
+        byte[] data = key.getRawArray();
+        int offset = key.getRawOffset();
+        int n = key.length();
+
+        // Similar to murmur hash
+        int m = 0xc6a4a793;
+        int r = 24;
+        int limit = offset + n;
+        int h = HASH_SEED ^ (n * m);
+
+        // Pick up four bytes at a time
+        for (; offset + 4 <= limit; offset += 4) {
+            int w = (data[offset] & 0xff) |
+                    (data[offset + 1] & 0xff) << 8 |
+                    (data[offset + 2] & 0xff) << 16 |
+                    (data[offset + 3] & 0xff) << 24;
+            h += w;
+            h *= m;
+            h ^= (h >>> 16);
+        }
+
+        // Pick up remaining bytes
+        switch (limit - offset) {
+            case 3:
+                h += (data[offset + 2] & 0xff) << 16;
+                // fall through
+            case 2:
+                h += (data[offset + 1] & 0xff) << 8;
+                // fall through
+            case 1:
+                h += data[offset] & 0xff;
+                h *= m;
+                h ^= (h >>> r);
+                break;
+        }
+        return h;
+    }
+}
@@ -20,8 +20,6 @@ package org.iq80.leveldb.table;
 
 import org.iq80.leveldb.util.Slice;
 import org.iq80.leveldb.util.Slices;
-import org.iq80.leveldb.util.Snappy;
-import org.iq80.leveldb.util.Zlib;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -32,66 +30,84 @@ import java.util.Comparator;
  * Based on the Dain's implementation {@link org.iq80.leveldb.table.FileChannelTable}
  * with Zlib support added
  */
-public class ExtendedFileChannelTable extends FileChannelTable {
+public class ExtendedFileChannelTable extends ExtendedTable {
+    private static final int INITIAL_READ_BUFFER_SIZE = 16 * 1024;
+    // larger blocks, such as ones holding a single huge value, are read into a heap buffer of
+    // their own rather than pinning that much direct memory to the thread
+    private static final int MAX_POOLED_READ_BUFFER_SIZE = 1024 * 1024;
+
+    // Blocks are read into a direct buffer per thread, so the read needs no intermediate copy
+    // by the JDK and the buffer feeds decompression in place. It only lives until the block
+    // is decompressed, which always produces a new heap slice.
+    private static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_READ_BUFFER_SIZE));
+
     public ExtendedFileChannelTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums) throws IOException {
-        super(name, fileChannel, comparator, verifyChecksums);
+        this(name, fileChannel, comparator, verifyChecksums, 0, null);
     }
 
-    @Override
-    protected Block readBlock(BlockHandle blockHandle) throws IOException {
-        // read block trailer
-        ByteBuffer trailerData = read(blockHandle.getOffset() + blockHandle.getDataSize(), BlockTrailer.ENCODED_LENGTH);
-        ExtendedBlockTrailer blockTrailer = ExtendedBlockTrailer.readBlockTrailer(Slices.copiedBuffer(trailerData));
+    public ExtendedFileChannelTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums,
+                                    long fileNumber, BlockCache blockCache) throws IOException {
+        this(name, fileChannel, comparator, verifyChecksums, fileNumber, blockCache, null);
+    }
 
-        ByteBuffer uncompressedBuffer = read(blockHandle.getOffset(), blockHandle.getDataSize());
-        Slice uncompressedData;
-        switch (blockTrailer.getCompressionType()) {
-            case SNAPPY: {
-                synchronized (ExtendedFileChannelTable.class) {
-                    int uncompressedLength = uncompressedLength(uncompressedBuffer);
-                    if (uncompressedScratch.capacity() < uncompressedLength) {
-                        uncompressedScratch = ByteBuffer.allocateDirect(uncompressedLength);
-                    }
-                    uncompressedScratch.clear();
+    public ExtendedFileChannelTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums,
+                                    long fileNumber, BlockCache blockCache, FilterPolicy filterPolicy) throws IOException {
+        super(name, fileChannel, comparator, verifyChecksums, fileNumber, blockCache, filterPolicy);
+    }
 
-                    Snappy.uncompress(uncompressedBuffer, uncompressedScratch);
-                    uncompressedData = Slices.copiedBuffer(uncompressedScratch);
-                }
-                break;
-            }
-            case ZLIB: {
-                synchronized (ExtendedFileChannelTable.class) {
-                    uncompressedScratch.clear();
-                    uncompressedScratch = Zlib.uncompress(uncompressedBuffer, uncompressedScratch);
-                    uncompressedData = Slices.copiedBuffer(uncompressedScratch);
-                    break;
-                }
-            }
-            case ZLIB_RAW: {
-                synchronized (ExtendedFileChannelTable.class) {
-                    uncompressedScratch.clear();
-                    uncompressedScratch = Zlib.uncompressRaw(uncompressedBuffer, uncompressedScratch);
-                    uncompressedData = Slices.copiedBuffer(uncompressedScratch);
-                    break;
-                }
-            }
-            case NONE:
-            default: {
-                uncompressedData = Slices.copiedBuffer(uncompressedBuffer);
+    @Override
+    protected Footer init() throws IOException {
+        long size = fileChannel.size();
+        ByteBuffer footerData = read(size - Footer.ENCODED_LENGTH, Footer.ENCODED_LENGTH);
+        return Footer.readFooter(Slices.copiedBuffer(footerData));
+    }
+
+    @Override
+    protected Slice readBlockContents(BlockHandle blockHandle) throws IOException {
+        // read the block and its trailer at once
+        int dataSize = blockHandle.getDataSize();
+        int length = dataSize + BlockTrailer.ENCODED_LENGTH;
+        ByteBuffer buffer;
+        if (length <= MAX_POOLED_READ_BUFFER_SIZE) {
+            buffer = readBuffer.get();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocateDirect(Math.min(Integer.highestOneBit(length - 1) << 1, MAX_POOLED_READ_BUFFER_SIZE));
+                readBuffer.set(buffer);
             }
+            buffer.clear().limit(length);
+        } else {
+            buffer = ByteBuffer.allocate(length);
         }
+        readFully(blockHandle.getOffset(), buffer);
+
+        buffer.position(dataSize);
+        ExtendedBlockTrailer blockTrailer = ExtendedBlockTrailer.readBlockTrailer(Slices.copiedBuffer(buffer));
 
-        return new Block(uncompressedData, comparator);
+        buffer.position(0).limit(dataSize);
+        return uncompress(blockHandle, blockTrailer.getCompressionType(), buffer);
     }
 
     private ByteBuffer read(long offset, int length)
             throws IOException {
-        ByteBuffer uncompressedBuffer = ByteBuffer.allocate(length);
-        fileChannel.read(uncompressedBuffer, offset);
-        if (uncompressedBuffer.hasRemaining()) {
-            throw new IOException("Could not read all the data");
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(offset, buffer);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Fills the remaining space of {@code buffer} with the bytes of the file from {@code offset}
+     * on, using positional reads that leave the position of the channel alone.
+     */
+    private void readFully(long offset, ByteBuffer buffer)
+            throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Could not read all the data");
+            }
+            position += read;
         }
-        uncompressedBuffer.clear();
-        return uncompressedBuffer;
     }
 }
@@ -35,12 +35,24 @@ import static com.google.common.base.Preconditions.checkArgument;
  * Based on the Dain's implementation {@link org.iq80.leveldb.table.MMapTable}
  * with Zlib support added
  */
-public class ExtendedMMapTable extends Table {
+public class ExtendedMMapTable extends ExtendedTable {
     private MappedByteBuffer data;
 
     public ExtendedMMapTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums)
             throws IOException {
-        super(name, fileChannel, comparator, verifyChecksums);
+        this(name, fileChannel, comparator, verifyChecksums, 0, null);
+    }
+
+    public ExtendedMMapTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums,
+                             long fileNumber, BlockCache blockCache)
+            throws IOException {
+        this(name, fileChannel, comparator, verifyChecksums, fileNumber, blockCache, null);
+    }
+
+    public ExtendedMMapTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums,
+                             long fileNumber, BlockCache blockCache, FilterPolicy filterPolicy)
+            throws IOException {
+        super(name, fileChannel, comparator, verifyChecksums, fileNumber, blockCache, filterPolicy);
         checkArgument(fileChannel.size() <= Integer.MAX_VALUE, "File must be smaller than %s bytes", Integer.MAX_VALUE);
     }
 
@@ -77,9 +89,8 @@ public class ExtendedMMapTable extends Table {
         }
     }
 
-    @SuppressWarnings({"NonPrivateFieldAccessedInSynchronizedContext", "AssignmentToStaticFieldFromInstanceMethod"})
     @Override
-    protected Block readBlock(BlockHandle blockHandle)
+    protected Slice readBlockContents(BlockHandle blockHandle)
             throws IOException {
         // read block trailer
         ExtendedBlockTrailer blockTrailer = ExtendedBlockTrailer.readBlockTrailer(Slices.copiedBuffer(this.data,
@@ -87,45 +98,8 @@ public class ExtendedMMapTable extends Table {
                 BlockTrailer.ENCODED_LENGTH));
 
         // decompress data
-        Slice uncompressedData;
         ByteBuffer uncompressedBuffer = read(this.data, (int) blockHandle.getOffset(), blockHandle.getDataSize());
-        switch (blockTrailer.getCompressionType()) {
-            case SNAPPY: {
-                synchronized (ExtendedMMapTable.class) {
-                    int uncompressedLength = uncompressedLength(uncompressedBuffer);
-                    if (uncompressedScratch.capacity() < uncompressedLength) {
-                        uncompressedScratch = ByteBuffer.allocateDirect(uncompressedLength);
-                    }
-                    uncompressedScratch.clear();
-
-                    Snappy.uncompress(uncompressedBuffer, uncompressedScratch);
-                    uncompressedData = Slices.copiedBuffer(uncompressedScratch);
-                }
-                break;
-            }
-            case ZLIB: {
-                synchronized (ExtendedMMapTable.class) {
-                    uncompressedScratch.clear();
-                    uncompressedScratch = Zlib.uncompress(uncompressedBuffer, uncompressedScratch);
-                    uncompressedData = Slices.copiedBuffer(uncompressedScratch);
-                    break;
-                }
-            }
-            case ZLIB_RAW: {
-                synchronized (ExtendedMMapTable.class) {
-                    uncompressedScratch.clear();
-                    uncompressedScratch = Zlib.uncompressRaw(uncompressedBuffer, uncompressedScratch);
-                    uncompressedData = Slices.copiedBuffer(uncompressedScratch);
-                    break;
-                }
-            }
-            case NONE:
-            default: {
-                uncompressedData = Slices.copiedBuffer(uncompressedBuffer);
-            }
-        }
-
-        return new Block(uncompressedData, comparator);
+        return uncompress(blockHandle, blockTrailer.getCompressionType(), uncompressedBuffer);
     }
 
     public static ByteBuffer read(MappedByteBuffer data, int offset, int length) throws IOException {
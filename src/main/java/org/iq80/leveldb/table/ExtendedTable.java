@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.SliceInput;
+import org.iq80.leveldb.util.Slices;
+import org.iq80.leveldb.util.Snappy;
+import org.iq80.leveldb.util.VariableLengthQuantity;
+import org.iq80.leveldb.util.Zlib;
+import org.nukkit.leveldb.ExtendedCompressionType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Common base of the Zlib capable tables, serving data blocks through
+ * the shared {@link BlockCache} when one is configured and answering
+ * {@link #keyMayMatch(Slice)} from the table's filter block.
+ */
+public abstract class ExtendedTable extends Table {
+    private static final int INITIAL_SCRATCH_SIZE = 64 * 1024;
+
+    /**
+     * Meta block listing the uncompressed length of every compressed data block, as pairs of
+     * the block offset, delta encoded, and its length, both variable length encoded.
+     */
+    static final String UNCOMPRESSED_SIZES_BLOCK = "nukkit.uncompressedsizes";
+
+    // Scratch space is per thread so that readers of different blocks never wait on each other.
+    // Snappy gets a direct buffer as the native implementation requires one; Zlib inflates into a heap array.
+    private static final ThreadLocal<ByteBuffer> snappyScratch = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_SCRATCH_SIZE));
+    private static final ThreadLocal<ByteBuffer> zlibScratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_SCRATCH_SIZE));
+
+    protected final long fileNumber;
+    private final BlockCache blockCache;
+    private final FilterBlockReader filter;
+
+    // offsets and uncompressed lengths of the compressed data blocks, or null if not recorded
+    private long[] blockOffsets;
+    private int[] uncompressedBlockSizes;
+
+    // blocks inflated without a recorded length, to estimate the next ones; a hint only,
+    // so updated without synchronization. Also used while the superclass reads the index.
+    private long inflatedCompressedBytes;
+    private long inflatedUncompressedBytes;
+
+    public ExtendedTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums,
+                         long fileNumber, BlockCache blockCache) throws IOException {
+        this(name, fileChannel, comparator, verifyChecksums, fileNumber, blockCache, null);
+    }
+
+    public ExtendedTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums,
+                         long fileNumber, BlockCache blockCache, FilterPolicy filterPolicy) throws IOException {
+        super(name, fileChannel, comparator, verifyChecksums);
+        this.fileNumber = fileNumber;
+        this.blockCache = blockCache;
+        Block metaindexBlock = new Block(readBlockContents(metaindexBlockHandle), new BytewiseComparator());
+        this.filter = filterPolicy == null ? null : readFilter(metaindexBlock, filterPolicy);
+        readUncompressedSizes(metaindexBlock);
+    }
+
+    private FilterBlockReader readFilter(Block metaindexBlock, FilterPolicy filterPolicy) throws IOException {
+        BlockIterator iterator = metaindexBlock.iterator();
+        Slice filterKey = Slices.copiedBuffer("filter." + filterPolicy.name(), UTF_8);
+        iterator.seek(filterKey);
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        BlockEntry entry = iterator.next();
+        if (!entry.getKey().equals(filterKey)) {
+            // no filter, or one written by another policy
+            return null;
+        }
+        SliceInput handleInput = entry.getValue().input();
+        BlockHandle filterHandle = BlockHandle.readBlockHandle(handleInput);
+        return new FilterBlockReader(filterPolicy, readBlockContents(filterHandle));
+    }
+
+    private void readUncompressedSizes(Block metaindexBlock) throws IOException {
+        BlockIterator iterator = metaindexBlock.iterator();
+        Slice key = Slices.copiedBuffer(UNCOMPRESSED_SIZES_BLOCK, UTF_8);
+        iterator.seek(key);
+        if (!iterator.hasNext()) {
+            return;
+        }
+        BlockEntry entry = iterator.next();
+        if (!entry.getKey().equals(key)) {
+            return;
+        }
+        BlockHandle handle = BlockHandle.readBlockHandle(entry.getValue().input());
+        SliceInput input = readBlockContents(handle).input();
+
+        long[] offsets = new long[64];
+        int[] sizes = new int[64];
+        int count = 0;
+        long offset = 0;
+        while (input.isReadable()) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            offset += VariableLengthQuantity.readVariableLengthLong(input);
+            offsets[count] = offset;
+            sizes[count] = VariableLengthQuantity.readVariableLengthInt(input);
+            count++;
+        }
+        blockOffsets = Arrays.copyOf(offsets, count);
+        uncompressedBlockSizes = Arrays.copyOf(sizes, count);
+    }
+
+    public long getFileNumber() {
+        return fileNumber;
+    }
+
+    public boolean hasFilter() {
+        return filter != null;
+    }
+
+    /**
+     * Returns {@code false} if the table certainly holds no entry at or after {@code key}
+     * sharing the filtered part of it, without reading any data block.
+     */
+    public boolean keyMayMatch(Slice key) {
+        if (filter == null) {
+            return true;
+        }
+        BlockIterator iterator = indexBlock.iterator();
+        iterator.seek(key);
+        if (!iterator.hasNext()) {
+            // key is past the last block
+            return false;
+        }
+        BlockHandle blockHandle = BlockHandle.readBlockHandle(iterator.next().getValue().input());
+        return filter.keyMayMatch(blockHandle.getOffset(), key);
+    }
+
+    /**
+     * Returns the keys of the index block, one separator at or after the last key of
+     * every data block, in order.
+     */
+    public List<Slice> getIndexKeys() {
+        List<Slice> keys = new ArrayList<>();
+        BlockIterator iterator = indexBlock.iterator();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next().getKey());
+        }
+        return keys;
+    }
+
+    @Override
+    protected Block readBlock(BlockHandle blockHandle) throws IOException {
+        // the Table constructor reads the index block before our fields are assigned,
+        // which conveniently keeps the index (already pinned by the table) out of the cache
+        if (blockCache == null) {
+            return readBlockFromFile(blockHandle);
+        }
+
+        Block block = blockCache.get(fileNumber, blockHandle.getOffset());
+        if (block == null) {
+            block = readBlockFromFile(blockHandle);
+            blockCache.put(fileNumber, blockHandle.getOffset(), block);
+        }
+        return block;
+    }
+
+    protected Block readBlockFromFile(BlockHandle blockHandle) throws IOException {
+        return new Block(readBlockContents(blockHandle), comparator);
+    }
+
+    /**
+     * Reads and decompresses the contents of a block, without its trailer.
+     */
+    protected abstract Slice readBlockContents(BlockHandle blockHandle) throws IOException;
+
+    /**
+     * Decompresses a block read from this table, inflating Zlib blocks straight into a slice
+     * of their recorded length. Tables written elsewhere record none, so the length is
+     * estimated from the blocks inflated before.
+     */
+    protected Slice uncompress(BlockHandle blockHandle, ExtendedCompressionType compressionType, ByteBuffer compressed) throws IOException {
+        if (compressionType != ExtendedCompressionType.ZLIB && compressionType != ExtendedCompressionType.ZLIB_RAW) {
+            return uncompress(compressionType, compressed);
+        }
+
+        if (blockOffsets != null) {
+            int index = Arrays.binarySearch(blockOffsets, blockHandle.getOffset());
+            if (index >= 0) {
+                return uncompress(compressionType, compressed, uncompressedBlockSizes[index]);
+            }
+        }
+
+        int compressedLength = compressed.remaining();
+        Slice block;
+        if (inflatedCompressedBytes > 0) {
+            // aim a little high so that the buffer rarely has to grow
+            long expectedLength = compressedLength * inflatedUncompressedBytes / inflatedCompressedBytes;
+            block = uncompress(compressionType, compressed, (int) Math.min(expectedLength + (expectedLength >> 3), Integer.MAX_VALUE - 8));
+        } else {
+            block = uncompress(compressionType, compressed);
+        }
+        inflatedCompressedBytes += compressedLength;
+        inflatedUncompressedBytes += block.length();
+        return block;
+    }
+
+    /**
+     * Decompresses the remaining bytes of {@code compressed} into a new heap slice.
+     * Safe to call concurrently from any number of threads.
+     */
+    public static Slice uncompress(ExtendedCompressionType compressionType, ByteBuffer compressed) throws IOException {
+        switch (compressionType) {
+            case SNAPPY: {
+                int uncompressedLength = VariableLengthQuantity.readVariableLengthInt(compressed.duplicate());
+                ByteBuffer scratch = snappyScratch.get();
+                if (scratch.capacity() < uncompressedLength) {
+                    scratch = ByteBuffer.allocateDirect(uncompressedLength);
+                    snappyScratch.set(scratch);
+                }
+                scratch.clear();
+
+                Snappy.uncompress(compressed, scratch);
+                return Slices.copiedBuffer(scratch);
+            }
+            case ZLIB:
+            case ZLIB_RAW: {
+                ByteBuffer scratch = zlibScratch.get();
+                scratch.clear();
+                if (compressionType == ExtendedCompressionType.ZLIB) {
+                    scratch = Zlib.uncompress(compressed, scratch);
+                } else {
+                    scratch = Zlib.uncompressRaw(compressed, scratch);
+                }
+                // keep the grown buffer for the next block
+                zlibScratch.set(scratch);
+
+                scratch.flip();
+                return Slices.copiedBuffer(scratch);
+            }
+            case NONE:
+            default: {
+                return Slices.copiedBuffer(compressed);
+            }
+        }
+    }
+
+    /**
+     * Decompresses a Zlib block expected to be {@code uncompressedLength} bytes long. If it is,
+     * the block is inflated into its own array without further copies.
+     */
+    public static Slice uncompress(ExtendedCompressionType compressionType, ByteBuffer compressed, int uncompressedLength) throws IOException {
+        if (compressionType != ExtendedCompressionType.ZLIB && compressionType != ExtendedCompressionType.ZLIB_RAW) {
+            return uncompress(compressionType, compressed);
+        }
+
+        ByteBuffer output = ByteBuffer.allocate(Math.max(uncompressedLength, 1));
+        if (compressionType == ExtendedCompressionType.ZLIB) {
+            output = Zlib.uncompress(compressed, output);
+        } else {
+            output = Zlib.uncompressRaw(compressed, output);
+        }
+
+        if (output.position() == output.capacity()) {
+            return new Slice(output.array(), output.arrayOffset(), output.position());
+        }
+        // the length was off, trim the block to its size
+        output.flip();
+        return Slices.copiedBuffer(output);
+    }
+}
@@ -19,30 +19,47 @@
 package org.iq80.leveldb.table;
 
 import org.iq80.leveldb.util.*;
+import org.nukkit.leveldb.CompressionPolicy;
 import org.nukkit.leveldb.ExtendedCompressionType;
 import org.nukkit.leveldb.ExtendedOptions;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 import static org.iq80.leveldb.impl.VersionSet.TARGET_FILE_SIZE;
 
 /**
  * Based on the Dain's implementation {@link org.iq80.leveldb.table.TableBuilder}
  * with Zlib support added
+ * <p>
+ * Given a compression executor, data blocks are compressed on its threads and written
+ * in order once done, with at most a few blocks per compression thread in flight.
  */
 public class ExtendedTableBuilder {
+    private static final int IN_FLIGHT_BLOCKS_PER_THREAD = 4;
 
     private final int blockRestartInterval;
     private final int blockSize;
     private final ExtendedCompressionType compressionType;
+    private final int deflateLevel;
+    private final CompressionPolicy compressionPolicy;
 
     private final FileChannel fileChannel;
     private final BlockBuilder dataBlockBuilder;
     private final BlockBuilder indexBlockBuilder;
+    private final FilterBlockBuilder filterBlockBuilder;
     private Slice lastKey;
     private final UserComparator userComparator;
 
@@ -65,7 +82,33 @@ public class ExtendedTableBuilder {
 
     private long position;
 
+    // Blocks handed to the compression executor, oldest first
+    private final ExecutorService compressionExecutor;
+    private final int maxInFlightBlocks;
+    private final Deque<PendingBlock> pendingBlocks = new ArrayDeque<>();
+    private List<Slice> pendingBlockKeys = new ArrayList<>();
+    private long pendingBytes;
+    private long writtenRawBytes;
+    private long writtenBytes;
+
+    // the UNCOMPRESSED_SIZES_BLOCK entries of the compressed data blocks written so far
+    private final DynamicSliceOutput uncompressedSizes = new DynamicSliceOutput(256);
+    private long lastCompressedBlockOffset;
+
     public ExtendedTableBuilder(ExtendedOptions options, FileChannel fileChannel, UserComparator userComparator) {
+        this(options, fileChannel, userComparator, options.filterPolicy());
+    }
+
+    public ExtendedTableBuilder(ExtendedOptions options, FileChannel fileChannel, UserComparator userComparator, FilterPolicy filterPolicy) {
+        this(options, fileChannel, userComparator, filterPolicy, null, 0);
+    }
+
+    /**
+     * @param level the level the table is written to, which selects its compression
+     *         from {@link ExtendedOptions#compressionPolicy()}
+     */
+    public ExtendedTableBuilder(ExtendedOptions options, FileChannel fileChannel, UserComparator userComparator, FilterPolicy filterPolicy,
+                                ExecutorService compressionExecutor, int level) {
         requireNonNull(options, "options is null");
         requireNonNull(fileChannel, "fileChannel is null");
         try {
@@ -79,7 +122,20 @@ public class ExtendedTableBuilder {
 
         blockRestartInterval = options.blockRestartInterval();
         blockSize = options.blockSize();
-        compressionType = options.extendedCompressionType();
+        compressionPolicy = options.compressionPolicy();
+        if (compressionPolicy.compressionType(level) == ExtendedCompressionType.SNAPPY && !Snappy.available()) {
+            compressionType = ExtendedCompressionType.NONE;
+        } else {
+            compressionType = compressionPolicy.compressionType(level);
+        }
+        deflateLevel = compressionPolicy.deflateLevel(level);
+
+        if (compressionType != ExtendedCompressionType.NONE) {
+            this.compressionExecutor = compressionExecutor;
+        } else {
+            this.compressionExecutor = null;
+        }
+        maxInFlightBlocks = IN_FLIGHT_BLOCKS_PER_THREAD * options.compressionThreads();
 
         dataBlockBuilder = new BlockBuilder((int) Math.min(blockSize * 1.1, TARGET_FILE_SIZE), blockRestartInterval, userComparator);
 
@@ -87,6 +143,13 @@ public class ExtendedTableBuilder {
         int expectedNumberOfBlocks = 1024;
         indexBlockBuilder = new BlockBuilder(BlockHandle.MAX_ENCODED_LENGTH * expectedNumberOfBlocks, 1, userComparator);
 
+        if (filterPolicy != null) {
+            filterBlockBuilder = new FilterBlockBuilder(filterPolicy);
+            filterBlockBuilder.startBlock(0);
+        } else {
+            filterBlockBuilder = null;
+        }
+
         lastKey = Slices.EMPTY_SLICE;
     }
 
@@ -94,9 +157,28 @@ public class ExtendedTableBuilder {
         return entryCount;
     }
 
+    /**
+     * Returns the size of the data blocks written so far before compression.
+     */
+    public long getUncompressedDataSize() {
+        return writtenRawBytes;
+    }
+
+    /**
+     * Returns the size of the data blocks written so far as stored in the file.
+     */
+    public long getCompressedDataSize() {
+        return writtenBytes;
+    }
+
     public long getFileSize()
             throws IOException {
-        return position + dataBlockBuilder.currentSizeEstimate();
+        long pendingSize = pendingBytes;
+        if (pendingSize > 0 && writtenRawBytes > 0) {
+            // assume the blocks in flight compress as well as the ones already written
+            pendingSize = pendingSize * writtenBytes / writtenRawBytes;
+        }
+        return position + pendingSize + dataBlockBuilder.currentSizeEstimate();
     }
 
     public void add(BlockEntry blockEntry)
@@ -123,6 +205,18 @@ public class ExtendedTableBuilder {
             Slice handleEncoding = BlockHandle.writeBlockHandle(pendingHandle);
             indexBlockBuilder.add(shortestSeparator, handleEncoding);
             pendingIndexEntry = false;
+        } else if (dataBlockBuilder.isEmpty() && !pendingBlocks.isEmpty() && pendingBlocks.peekLast().separator == null) {
+            // the index entry of a block in flight is added once it is written
+            pendingBlocks.peekLast().separator = userComparator.findShortestSeparator(lastKey, key);
+        }
+
+        if (filterBlockBuilder != null) {
+            if (compressionExecutor != null) {
+                // filters are keyed by block offset, which is only known once the block is written
+                pendingBlockKeys.add(key);
+            } else {
+                filterBlockBuilder.addKey(key);
+            }
         }
 
         lastKey = key;
@@ -144,8 +238,20 @@ public class ExtendedTableBuilder {
 
         checkState(!pendingIndexEntry, "Internal error: Table already has a pending index entry to flush");
 
+        if (compressionExecutor != null) {
+            submitBlock(dataBlockBuilder);
+            return;
+        }
+
+        int rawLength = dataBlockBuilder.currentSizeEstimate();
         pendingHandle = writeBlock(dataBlockBuilder);
         pendingIndexEntry = true;
+        writtenRawBytes += rawLength;
+        writtenBytes += pendingHandle.getDataSize();
+
+        if (filterBlockBuilder != null) {
+            filterBlockBuilder.startBlock(position);
+        }
     }
 
     private BlockHandle writeBlock(BlockBuilder blockBuilder)
@@ -154,44 +260,136 @@ public class ExtendedTableBuilder {
         Slice raw = blockBuilder.finish();
 
         // attempt to compress the block
-        Slice blockContents = raw;
-        ExtendedCompressionType blockCompressionType = ExtendedCompressionType.NONE;
-        switch (compressionType) {
-            case SNAPPY: {
-                ensureCompressedOutputCapacity(maxCompressedLength(raw.length()));
-                try {
-                    int compressedSize = Snappy.compress(raw.getRawArray(), raw.getRawOffset(), raw.length(), compressedOutput.getRawArray(), 0);
-
-                    // Don't use the compressed data if compressed less than 12.5%,
-                    if (compressedSize < raw.length() - (raw.length() / 8)) {
-                        blockContents = compressedOutput.slice(0, compressedSize);
-                        blockCompressionType = ExtendedCompressionType.SNAPPY;
-                    }
-                } catch (IOException ignored) {
-                    // compression failed, so just store uncompressed form
-                }
-                break;
+        ensureCompressedOutputCapacity(maxCompressedLength(compressionType, raw.length()));
+        CompressedBlock block = compress(compressionType, deflateLevel, compressionPolicy.maxCompressedLength(raw.length()), raw, compressedOutput);
+        BlockHandle blockHandle = writeRawBlock(block.contents, block.compressionType);
+        recordUncompressedSize(blockHandle, block.compressionType, raw.length());
+
+        // clean up state
+        blockBuilder.reset();
+
+        return blockHandle;
+    }
+
+    private void submitBlock(BlockBuilder blockBuilder)
+            throws IOException {
+        // the block builder is reused, so the compression task gets a copy of the block
+        final Slice raw = blockBuilder.finish().copySlice();
+        blockBuilder.reset();
+
+        Future<CompressedBlock> compressed = compressionExecutor.submit(new Callable<CompressedBlock>() {
+            @Override
+            public CompressedBlock call() {
+                Slice output = Slices.allocate(maxCompressedLength(compressionType, raw.length()));
+                return compress(compressionType, deflateLevel, compressionPolicy.maxCompressedLength(raw.length()), raw, output);
             }
-            case ZLIB: {
-                ensureCompressedOutputCapacity(Zlib.maxCompressedLength(raw.length()));
-                try {
-                    Zlib.compress(raw.getRawArray(), raw.getRawOffset(), raw.length(), compressedOutput.getRawArray(), 0);
-                } catch (IOException ignored) {
-                    // compression failed, so just store uncompressed form
-                }
-                break;
+        });
+        pendingBlocks.add(new PendingBlock(raw.length(), compressed, pendingBlockKeys));
+        pendingBlockKeys = new ArrayList<>();
+        pendingBytes += raw.length();
+
+        // bound the memory held by blocks in flight
+        while (pendingBlocks.size() > maxInFlightBlocks) {
+            writePendingBlock();
+        }
+    }
+
+    private void writePendingBlock()
+            throws IOException {
+        PendingBlock pending = pendingBlocks.poll();
+        CompressedBlock block;
+        try {
+            block = pending.compressed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing a block", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress a block", e.getCause());
+        }
+
+        // the filter builder was already started at the offset of this block
+        if (filterBlockBuilder != null) {
+            for (Slice key : pending.keys) {
+                filterBlockBuilder.addKey(key);
             }
-            case ZLIB_RAW: {
-                ensureCompressedOutputCapacity(Zlib.maxCompressedLength(raw.length()));
-                try {
-                    Zlib.compressRaw(raw.getRawArray(), raw.getRawOffset(), raw.length(), compressedOutput.getRawArray(), 0);
-                } catch (IOException ignored) {
-                    // compression failed, so just store uncompressed form
-                }
-                break;
+        }
+
+        BlockHandle blockHandle = writeRawBlock(block.contents, block.compressionType);
+        recordUncompressedSize(blockHandle, block.compressionType, pending.rawLength);
+        pendingBytes -= pending.rawLength;
+        writtenRawBytes += pending.rawLength;
+        writtenBytes += block.contents.length();
+
+        if (pending.separator != null) {
+            indexBlockBuilder.add(pending.separator, BlockHandle.writeBlockHandle(blockHandle));
+        } else {
+            // the next key has not been seen yet
+            pendingHandle = blockHandle;
+            pendingIndexEntry = true;
+        }
+
+        if (filterBlockBuilder != null) {
+            filterBlockBuilder.startBlock(position);
+        }
+    }
+
+    /**
+     * Compresses {@code raw} into {@code output}, falling back to the raw block if
+     * compression fails or does not get the block down to {@code maxLength} bytes.
+     */
+    private static CompressedBlock compress(ExtendedCompressionType compressionType, int deflateLevel, int maxLength,
+                                            Slice raw, Slice output) {
+        int compressedSize;
+        try {
+            switch (compressionType) {
+                case SNAPPY:
+                    compressedSize = Snappy.compress(raw.getRawArray(), raw.getRawOffset(), raw.length(), output.getRawArray(), output.getRawOffset());
+                    break;
+                case ZLIB:
+                    compressedSize = Zlib.compress(raw.getRawArray(), raw.getRawOffset(), raw.length(), output.getRawArray(), output.getRawOffset(), deflateLevel);
+                    break;
+                case ZLIB_RAW:
+                    compressedSize = Zlib.compressRaw(raw.getRawArray(), raw.getRawOffset(), raw.length(), output.getRawArray(), output.getRawOffset(), deflateLevel);
+                    break;
+                default:
+                    return new CompressedBlock(raw, ExtendedCompressionType.NONE);
             }
+        } catch (IOException ignored) {
+            // compression failed, so just store uncompressed form
+            return new CompressedBlock(raw, ExtendedCompressionType.NONE);
+        }
+
+        // Don't use the compressed data if it does not save enough space
+        if (compressedSize > maxLength) {
+            return new CompressedBlock(raw, ExtendedCompressionType.NONE);
+        }
+        return new CompressedBlock(output.slice(0, compressedSize), compressionType);
+    }
+
+    private static int maxCompressedLength(ExtendedCompressionType compressionType, int length) {
+        switch (compressionType) {
+            case SNAPPY:
+                return maxCompressedLength(length);
+            case ZLIB:
+            case ZLIB_RAW:
+                return Zlib.maxCompressedLength(length);
+            default:
+                return 0;
         }
+    }
+
+    private void recordUncompressedSize(BlockHandle blockHandle, ExtendedCompressionType blockCompressionType, int rawLength) {
+        // only data blocks, finish() closes the table before writing the others
+        if (closed || blockCompressionType == ExtendedCompressionType.NONE) {
+            return;
+        }
+        VariableLengthQuantity.writeVariableLengthLong(blockHandle.getOffset() - lastCompressedBlockOffset, uncompressedSizes);
+        VariableLengthQuantity.writeVariableLengthInt(rawLength, uncompressedSizes);
+        lastCompressedBlockOffset = blockHandle.getOffset();
+    }
 
+    private BlockHandle writeRawBlock(Slice blockContents, ExtendedCompressionType blockCompressionType)
+            throws IOException {
         // create block trailer
         ExtendedBlockTrailer blockTrailer = new ExtendedBlockTrailer(blockCompressionType, crc32c(blockContents, blockCompressionType));
         Slice trailer = ExtendedBlockTrailer.writeBlockTrailer(blockTrailer);
@@ -202,9 +400,6 @@ public class ExtendedTableBuilder {
         // write data and trailer
         position += fileChannel.write(new ByteBuffer[]{blockContents.toByteBuffer(), trailer.toByteBuffer()});
 
-        // clean up state
-        blockBuilder.reset();
-
         return blockHandle;
     }
 
@@ -239,11 +434,33 @@ public class ExtendedTableBuilder {
         // flush current data block
         flush();
 
+        // write the blocks still in flight
+        if (!pendingBlocks.isEmpty() && pendingBlocks.peekLast().separator == null) {
+            pendingBlocks.peekLast().separator = userComparator.findShortSuccessor(lastKey);
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writePendingBlock();
+        }
+
         // mark table as closed
         closed = true;
 
-        // write (empty) meta index block
+        // write filter block, uncompressed as readers expect
         BlockBuilder metaIndexBlockBuilder = new BlockBuilder(256, blockRestartInterval, new BytewiseComparator());
+        if (filterBlockBuilder != null) {
+            BlockHandle filterBlockHandle = writeRawBlock(filterBlockBuilder.finish(), ExtendedCompressionType.NONE);
+            Slice key = Slices.copiedBuffer("filter." + filterBlockBuilder.getPolicy().name(), UTF_8);
+            metaIndexBlockBuilder.add(key, BlockHandle.writeBlockHandle(filterBlockHandle));
+        }
+
+        // write the uncompressed data block sizes, letting readers allocate exactly once
+        if (uncompressedSizes.size() > 0) {
+            BlockHandle sizesBlockHandle = writeRawBlock(uncompressedSizes.slice(), ExtendedCompressionType.NONE);
+            Slice key = Slices.copiedBuffer(ExtendedTable.UNCOMPRESSED_SIZES_BLOCK, UTF_8);
+            metaIndexBlockBuilder.add(key, BlockHandle.writeBlockHandle(sizesBlockHandle));
+        }
+
+        // write meta index block
         // TODO(postrelease): Add stats and other meta blocks
         BlockHandle metaindexBlockHandle = writeBlock(metaIndexBlockBuilder);
 
@@ -268,6 +485,11 @@ public class ExtendedTableBuilder {
     public void abandon() {
         checkState(!closed, "table is finished");
         closed = true;
+
+        for (PendingBlock pending : pendingBlocks) {
+            pending.compressed.cancel(false);
+        }
+        pendingBlocks.clear();
     }
 
     public static int crc32c(Slice data, ExtendedCompressionType type) {
@@ -283,4 +505,28 @@ public class ExtendedTableBuilder {
         }
         compressedOutput = Slices.allocate(capacity);
     }
+
+    private static final class CompressedBlock {
+        private final Slice contents;
+        private final ExtendedCompressionType compressionType;
+
+        private CompressedBlock(Slice contents, ExtendedCompressionType compressionType) {
+            this.contents = contents;
+            this.compressionType = compressionType;
+        }
+    }
+
+    private static final class PendingBlock {
+        private final int rawLength;
+        private final Future<CompressedBlock> compressed;
+        private final List<Slice> keys;
+        // index key of the block, set once the first key of the next block is seen
+        private Slice separator;
+
+        private PendingBlock(int rawLength, Future<CompressedBlock> compressed, List<Slice> keys) {
+            this.rawLength = rawLength;
+            this.compressed = compressed;
+            this.keys = keys;
+        }
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import org.iq80.leveldb.util.DynamicSliceOutput;
+import org.iq80.leveldb.util.IntVector;
+import org.iq80.leveldb.util.Slice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Builds the filter block of a table: one filter for every 2KB of data block
+ * offsets, followed by the offsets of the filters and the base lg.
+ * <p>
+ * The sequence of calls must match the regexp {@code (startBlock addKey*)* finish}.
+ */
+public class FilterBlockBuilder {
+    // Generate new filter every 2KB of data
+    static final int FILTER_BASE_LG = 11;
+    static final int FILTER_BASE = 1 << FILTER_BASE_LG;
+
+    private final FilterPolicy policy;
+    private final List<Slice> keys = new ArrayList<>();
+    private final DynamicSliceOutput result = new DynamicSliceOutput(4 * 1024);
+    private final IntVector filterOffsets = new IntVector(32);
+
+    public FilterBlockBuilder(FilterPolicy policy) {
+        this.policy = requireNonNull(policy, "policy is null");
+    }
+
+    public FilterPolicy getPolicy() {
+        return policy;
+    }
+
+    public void startBlock(long blockOffset) {
+        long filterIndex = blockOffset / FILTER_BASE;
+        checkArgument(filterIndex >= filterOffsets.size(), "block offsets must increase");
+        while (filterIndex > filterOffsets.size()) {
+            generateFilter();
+        }
+    }
+
+    public void addKey(Slice key) {
+        keys.add(key);
+    }
+
+    public Slice finish() {
+        if (!keys.isEmpty()) {
+            generateFilter();
+        }
+
+        // Append array of per-filter offsets
+        int arrayOffset = result.size();
+        filterOffsets.write(result);
+
+        result.writeInt(arrayOffset);
+        // Save encoding parameter in result
+        result.writeByte(FILTER_BASE_LG);
+        return result.slice();
+    }
+
+    private void generateFilter() {
+        filterOffsets.add(result.size());
+        if (keys.isEmpty()) {
+            // Fast path if there are no keys for this filter
+            return;
+        }
+
+        result.writeBytes(policy.createFilter(keys));
+        keys.clear();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import org.iq80.leveldb.util.Slice;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads a filter block written by {@link FilterBlockBuilder}. A malformed block
+ * is treated as matching every key.
+ */
+public class FilterBlockReader {
+    private final FilterPolicy policy;
+    private final Slice contents;
+    private final int baseLg;
+    private final int offsetArrayStart;
+    private final int filterCount;
+
+    public FilterBlockReader(FilterPolicy policy, Slice contents) {
+        this.policy = requireNonNull(policy, "policy is null");
+        this.contents = requireNonNull(contents, "contents is null");
+
+        int n = contents.length();
+        if (n < 5) {
+            // 1 byte for base_lg and 4 for start of offset array
+            baseLg = 0;
+            offsetArrayStart = 0;
+            filterCount = 0;
+            return;
+        }
+        int lastWord = contents.getInt(n - 5);
+        if (lastWord < 0 || lastWord > n - 5) {
+            baseLg = 0;
+            offsetArrayStart = 0;
+            filterCount = 0;
+            return;
+        }
+        baseLg = contents.getUnsignedByte(n - 1);
+        offsetArrayStart = lastWord;
+        filterCount = (n - 5 - lastWord) / 4;
+    }
+
+    public boolean keyMayMatch(long blockOffset, Slice key) {
+        long index = blockOffset >>> baseLg;
+        if (index < filterCount) {
+            int start = contents.getInt(offsetArrayStart + (int) index * 4);
+            int limit = contents.getInt(offsetArrayStart + (int) index * 4 + 4);
+            if (start <= limit && limit <= offsetArrayStart) {
+                Slice filter = contents.slice(start, limit - start);
+                return policy.keyMayMatch(key, filter);
+            } else if (start == limit) {
+                // Empty filters do not match any keys
+                return false;
+            }
+        }
+        // Errors are treated as potential matches
+        return true;
+    }
+}
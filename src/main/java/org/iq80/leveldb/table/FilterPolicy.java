@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import org.iq80.leveldb.util.Slice;
+
+import java.util.List;
+
+/**
+ * Builds small summaries of the keys of a table block, letting readers skip
+ * blocks that cannot contain a key.
+ */
+public interface FilterPolicy {
+    /**
+     * Name of the policy, stored in the meta index block as {@code filter.<name>}.
+     * Changing the encoding of the filter requires changing the name.
+     */
+    String name();
+
+    /**
+     * Creates a filter summarising the specified keys, which may contain duplicates.
+     */
+    byte[] createFilter(List<Slice> keys);
+
+    /**
+     * Returns {@code false} only if {@code key} was definitely not passed to the
+     * {@link #createFilter(List)} call that produced {@code filter}.
+     */
+    boolean keyMayMatch(Slice key, Slice filter);
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import org.iq80.leveldb.impl.InternalKey;
+import org.iq80.leveldb.util.InternalTableIterator;
+import org.iq80.leveldb.util.Slice;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Iterates a table like {@link org.iq80.leveldb.util.TableIterator}, tuned for scans.
+ * <p>
+ * Given an executor, the next few data blocks are read and decompressed on it while the
+ * current one is consumed, so that a sequential scan seldom waits for a block. Given an
+ * upper bound, iteration ends at the first key at or past it, and blocks lying entirely
+ * past it are never read. Seeks landing in the block already open reuse it, so nearby
+ * keys looked up in order share one read and decompression.
+ */
+public class ScanTableIterator extends InternalTableIterator {
+    private final Table table;
+    private final BlockIterator indexIterator;
+    private final ExecutorService executor;
+    private final int readaheadBlocks;
+    private final Slice upperBound;
+
+    // the blocks following the current one, in order; their index entries are consumed
+    private final Deque<PendingBlock> readahead = new ArrayDeque<>();
+    private BlockIterator current;
+    private Slice currentBlockHandle;
+    // whether a consumed index entry reached the bound, so no later block holds keys below it
+    private boolean lastBlock;
+
+    /**
+     * @param readaheadBlocks how many blocks to read ahead on {@code executor}, or 0
+     * @param upperBound the encoded internal key before which iteration ends, or {@code null}
+     */
+    public ScanTableIterator(Table table, ExecutorService executor, int readaheadBlocks, Slice upperBound) {
+        super(table.iterator());
+        checkArgument(readaheadBlocks >= 0, "readaheadBlocks is negative");
+        checkArgument(readaheadBlocks == 0 || executor != null, "executor is null");
+        this.table = table;
+        this.indexIterator = table.indexBlock.iterator();
+        this.executor = executor;
+        this.readaheadBlocks = readaheadBlocks;
+        this.upperBound = upperBound;
+    }
+
+    @Override
+    protected void seekToFirstInternal() {
+        cancelReadahead();
+        indexIterator.seekToFirst();
+        lastBlock = false;
+        current = null;
+        currentBlockHandle = null;
+    }
+
+    @Override
+    public void seekInternal(InternalKey targetKey) {
+        cancelReadahead();
+        Slice key = targetKey.encode();
+        indexIterator.seek(key);
+        lastBlock = false;
+        if (!indexIterator.hasNext()) {
+            current = null;
+            currentBlockHandle = null;
+        } else if (current != null && indexIterator.peek().getValue().equals(currentBlockHandle)) {
+            // the key is in the open block
+            nextBlockHandle();
+            readAhead();
+            current.seek(key);
+        } else {
+            current = nextBlock();
+            current.seek(key);
+        }
+    }
+
+    @Override
+    protected Entry<InternalKey, Slice> getNextElement() {
+        while (current == null || !current.hasNext()) {
+            if (readahead.isEmpty() && !hasNextBlockHandle()) {
+                current = null;
+                return null;
+            }
+            current = nextBlock();
+        }
+        if (upperBound != null && table.comparator.compare(current.peek().getKey(), upperBound) >= 0) {
+            // stay at the bound, past it there is nothing left to return
+            return null;
+        }
+        BlockEntry next = current.next();
+        return Maps.immutableEntry(new InternalKey(next.getKey()), next.getValue());
+    }
+
+    private boolean hasNextBlockHandle() {
+        return !lastBlock && indexIterator.hasNext();
+    }
+
+    private Slice nextBlockHandle() {
+        BlockEntry entry = indexIterator.next();
+        // the index key is at or after every key of its block and before those of the next
+        if (upperBound != null && table.comparator.compare(entry.getKey(), upperBound) >= 0) {
+            lastBlock = true;
+        }
+        return entry.getValue();
+    }
+
+    private BlockIterator nextBlock() {
+        Block block;
+        PendingBlock pending = readahead.poll();
+        if (pending != null) {
+            currentBlockHandle = pending.handle;
+            block = Futures.getUnchecked(pending.block);
+        } else {
+            currentBlockHandle = nextBlockHandle();
+            block = table.openBlock(currentBlockHandle);
+        }
+        readAhead();
+        return block.iterator();
+    }
+
+    /**
+     * Keeps the blocks following the current one coming.
+     */
+    private void readAhead() {
+        while (readahead.size() < readaheadBlocks && hasNextBlockHandle()) {
+            final Slice blockHandle = nextBlockHandle();
+            try {
+                readahead.add(new PendingBlock(blockHandle, executor.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() {
+                        return table.openBlock(blockHandle);
+                    }
+                })));
+            } catch (RejectedExecutionException e) {
+                // the database is closing, read the block in place
+                readahead.add(new PendingBlock(blockHandle, Futures.immediateFuture(table.openBlock(blockHandle))));
+                break;
+            }
+        }
+    }
+
+    private void cancelReadahead() {
+        for (PendingBlock pending : readahead) {
+            pending.block.cancel(false);
+        }
+        readahead.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ScanTableIterator");
+        sb.append("{table=").append(table);
+        sb.append(", readaheadBlocks=").append(readaheadBlocks);
+        sb.append(", upperBound=").append(upperBound);
+        sb.append(", current=").append(current);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static final class PendingBlock {
+        private final Slice handle;
+        private final Future<Block> block;
+
+        private PendingBlock(Slice handle, Future<Block> block) {
+            this.handle = handle;
+            this.block = block;
+        }
+    }
+}
@@ -18,16 +18,60 @@
 package org.iq80.leveldb.util;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
+/**
+ * Zlib and raw deflate compression between arrays or {@link ByteBuffer}s of any kind.
+ * <p>
+ * On Java 11 and later buffers are handed to the {@link Inflater} and {@link Deflater}
+ * as they are, so direct and mapped buffers are never copied to the heap. Older runtimes
+ * copy them through a per thread array instead.
+ */
 public class Zlib {
 
     private static final SPI ZLIB = new SPI(false);
-    private static final SPI ZLIB_RAW = new SPI(false);
+    private static final SPI ZLIB_RAW = new SPI(true);
+
+    // the ByteBuffer methods of Inflater and Deflater, or null before Java 11
+    private static final MethodHandle INFLATER_SET_INPUT;
+    private static final MethodHandle INFLATER_INFLATE;
+    private static final MethodHandle DEFLATER_SET_INPUT;
+    private static final MethodHandle DEFLATER_DEFLATE;
+
+    static {
+        MethodHandle inflaterSetInput = null;
+        MethodHandle inflaterInflate = null;
+        MethodHandle deflaterSetInput = null;
+        MethodHandle deflaterDeflate = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            inflaterSetInput = lookup.findVirtual(Inflater.class, "setInput", MethodType.methodType(void.class, ByteBuffer.class));
+            inflaterInflate = lookup.findVirtual(Inflater.class, "inflate", MethodType.methodType(int.class, ByteBuffer.class));
+            deflaterSetInput = lookup.findVirtual(Deflater.class, "setInput", MethodType.methodType(void.class, ByteBuffer.class));
+            deflaterDeflate = lookup.findVirtual(Deflater.class, "deflate", MethodType.methodType(int.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            inflaterSetInput = null;
+            inflaterInflate = null;
+            deflaterSetInput = null;
+            deflaterDeflate = null;
+        }
+        INFLATER_SET_INPUT = inflaterSetInput;
+        INFLATER_INFLATE = inflaterInflate;
+        DEFLATER_SET_INPUT = deflaterSetInput;
+        DEFLATER_DEFLATE = deflaterDeflate;
+    }
 
+    /**
+     * Inflates the remaining bytes of {@code compressed} into {@code uncompressed} from its
+     * position on, growing it as needed. The buffer returned holds the output and is
+     * {@code uncompressed} unless that was too small; keep it to reuse its capacity.
+     */
     public static ByteBuffer uncompress(ByteBuffer compressed, ByteBuffer uncompressed)
             throws IOException {
         return ZLIB.uncompress(compressed, uncompressed);
@@ -35,7 +79,23 @@ public class Zlib {
 
     public static int compress(byte[] input, int inputOffset, int length,
                                byte[] output, int outputOffset) throws IOException {
-        return ZLIB.compress(input, inputOffset, length, output, outputOffset);
+        return ZLIB.compress(input, inputOffset, length, output, outputOffset, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public static int compress(byte[] input, int inputOffset, int length,
+                               byte[] output, int outputOffset, int level) throws IOException {
+        return ZLIB.compress(input, inputOffset, length, output, outputOffset, level);
+    }
+
+    /**
+     * Deflates the remaining bytes of {@code input} into {@code output} from its position on,
+     * advancing both buffers. Fails if {@code output} has less room than the compressed data,
+     * which {@link #maxCompressedLength(int)} always covers.
+     *
+     * @return the compressed length
+     */
+    public static int compress(ByteBuffer input, ByteBuffer output, int level) throws IOException {
+        return ZLIB.compress(input, output, level);
     }
 
     public static ByteBuffer uncompressRaw(ByteBuffer compressed, ByteBuffer uncompressed)
@@ -45,12 +105,24 @@ public class Zlib {
 
     public static int compressRaw(byte[] input, int inputOffset, int length,
                                   byte[] output, int outputOffset) throws IOException {
-        return ZLIB_RAW.compress(input, inputOffset, length, output, outputOffset);
+        return ZLIB_RAW.compress(input, inputOffset, length, output, outputOffset, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public static int compressRaw(byte[] input, int inputOffset, int length,
+                                  byte[] output, int outputOffset, int level) throws IOException {
+        return ZLIB_RAW.compress(input, inputOffset, length, output, outputOffset, level);
+    }
+
+    public static int compressRaw(ByteBuffer input, ByteBuffer output, int level) throws IOException {
+        return ZLIB_RAW.compress(input, output, level);
     }
 
     private static class SPI {
         private final ThreadLocal<Deflater> deflaterThreadLocal;
         private final ThreadLocal<Inflater> inflaterThreadLocal;
+        // copies of direct buffers when the runtime cannot read them in place
+        private final ThreadLocal<byte[]> inputThreadLocal = ThreadLocal.withInitial(() -> new byte[0]);
+        private final ThreadLocal<byte[]> outputThreadLocal = ThreadLocal.withInitial(() -> new byte[0]);
 
         public SPI(boolean nowrap) {
             this(-1, nowrap);
@@ -62,85 +134,193 @@ public class Zlib {
         }
 
         public ByteBuffer uncompress(ByteBuffer compressed, ByteBuffer uncompressed) throws IOException {
-            int readableBytes = compressed.limit() - compressed.position();
+            int readableBytes = compressed.remaining();
             Inflater inflater = inflaterThreadLocal.get();
             inflater.reset();
-
-            int readerIndex = compressed.position();
-
-            if (compressed.hasArray()) {
-                inflater.setInput(compressed.array(), compressed.arrayOffset() + readerIndex, readableBytes);
-            } else {
-                byte[] array = new byte[readableBytes];
-                compressed.get(array);
-                compressed.position(readerIndex);
-                inflater.setInput(array);
-            }
-
-            uncompressed = prepareDecompressBuffer(uncompressed, inflater.getRemaining() << 1);
             try {
-                while (!inflater.needsInput()) {
-                    byte[] outArray = uncompressed.array();
-                    int writerIndex = uncompressed.position();
-                    int outIndex = uncompressed.arrayOffset() + writerIndex;
-                    int writableBytes = uncompressed.limit() - uncompressed.position();
-                    int outputLength = inflater.inflate(outArray, outIndex, writableBytes);
-                    if (outputLength > 0) {
-                        uncompressed.position(writerIndex + outputLength);
-                    }
+                setInput(inflater, compressed);
 
-                    if (inflater.finished()) {
-                        break;
-                    } else {
-                        uncompressed = prepareDecompressBuffer(uncompressed, inflater.getRemaining() << 1);
+                // a buffer with room left may have been sized for this block by the caller
+                boolean presized = uncompressed != null && uncompressed.hasRemaining();
+                uncompressed = prepareDecompressBuffer(uncompressed, presized ? 0 : readableBytes << 1);
+                while (!inflater.finished()) {
+                    // the call reading the end of the stream may write nothing
+                    if (inflate(inflater, uncompressed) == 0 && !inflater.finished()) {
+                        if (inflater.needsInput() || inflater.needsDictionary()) {
+                            throw new IOException("decompression failure: truncated input");
+                        }
+                        uncompressed = prepareDecompressBuffer(uncompressed, Math.max(readableBytes, inflater.getRemaining() << 1));
                     }
                 }
 
-                compressed.position(readableBytes - inflater.getRemaining());
+                compressed.position(compressed.position() + readableBytes - inflater.getRemaining());
             } catch (DataFormatException e) {
                 throw new IOException("decompression failure", e);
+            } finally {
+                // drop the inflater's reference to the input
+                inflater.reset();
             }
             return uncompressed;
         }
 
-        public int compress(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+        private void setInput(Inflater inflater, ByteBuffer compressed) {
+            if (INFLATER_SET_INPUT != null) {
+                // the inflater advances the buffer it is given, so give it a duplicate
+                invoke(INFLATER_SET_INPUT, inflater, compressed.duplicate());
+            } else if (compressed.hasArray()) {
+                inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+            } else {
+                byte[] array = inputArray(compressed.remaining());
+                compressed.duplicate().get(array, 0, compressed.remaining());
+                inflater.setInput(array, 0, compressed.remaining());
+            }
+        }
+
+        private static int inflate(Inflater inflater, ByteBuffer uncompressed) throws DataFormatException {
+            if (INFLATER_INFLATE != null) {
+                try {
+                    return (int) INFLATER_INFLATE.invokeExact(inflater, uncompressed);
+                } catch (DataFormatException | RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new AssertionError(e);
+                }
+            }
+            // without the ByteBuffer methods prepareDecompressBuffer only hands out heap buffers
+            int writerIndex = uncompressed.position();
+            int outputLength = inflater.inflate(uncompressed.array(), uncompressed.arrayOffset() + writerIndex, uncompressed.remaining());
+            uncompressed.position(writerIndex + outputLength);
+            return outputLength;
+        }
+
+        public int compress(byte[] input, int inputOffset, int length, byte[] output, int outputOffset, int level)
                 throws IOException {
             Deflater deflater = deflaterThreadLocal.get();
             deflater.reset();
+            // takes effect immediately as the reset deflater holds no input
+            deflater.setLevel(level);
             deflater.setInput(input, inputOffset, length);
             deflater.finish();
 
             int offset = outputOffset;
-            for (; ; ) {
-                int numBytes;
-                do {
-                    numBytes = deflater.deflate(output, offset, output.length - offset);
-                    offset += numBytes;
-                } while (numBytes > 0);
-
-                if (deflater.needsInput()) {
-                    break;
-                } else {
+            while (!deflater.finished()) {
+                int numBytes = deflater.deflate(output, offset, output.length - offset);
+                if (numBytes == 0 && offset == output.length) {
+                    // the output buffer is full before the stream is complete
                     throw new IOException("compression failure");
                 }
+                offset += numBytes;
             }
             return offset - outputOffset;
         }
+
+        public int compress(ByteBuffer input, ByteBuffer output, int level)
+                throws IOException {
+            if (DEFLATER_SET_INPUT == null || input.hasArray() && output.hasArray()) {
+                return compressArrays(input, output, level);
+            }
+
+            Deflater deflater = deflaterThreadLocal.get();
+            deflater.reset();
+            deflater.setLevel(level);
+            try {
+                invoke(DEFLATER_SET_INPUT, deflater, input);
+                deflater.finish();
+
+                int start = output.position();
+                while (!deflater.finished()) {
+                    int numBytes;
+                    try {
+                        numBytes = (int) DEFLATER_DEFLATE.invokeExact(deflater, output);
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new AssertionError(e);
+                    }
+                    if (numBytes == 0 && !output.hasRemaining()) {
+                        throw new IOException("compression failure");
+                    }
+                }
+                return output.position() - start;
+            } finally {
+                // drop the deflater's reference to the input
+                deflater.reset();
+            }
+        }
+
+        private int compressArrays(ByteBuffer input, ByteBuffer output, int level)
+                throws IOException {
+            int length = input.remaining();
+            byte[] inputArray;
+            int inputOffset;
+            if (input.hasArray()) {
+                inputArray = input.array();
+                inputOffset = input.arrayOffset() + input.position();
+            } else {
+                inputArray = inputArray(length);
+                inputOffset = 0;
+                input.duplicate().get(inputArray, 0, length);
+            }
+
+            int compressedSize;
+            if (output.hasArray()) {
+                compressedSize = compress(inputArray, inputOffset, length, output.array(), output.arrayOffset() + output.position(), level);
+            } else {
+                byte[] outputArray = outputThreadLocal.get();
+                if (outputArray.length < output.remaining()) {
+                    outputArray = new byte[output.remaining()];
+                    outputThreadLocal.set(outputArray);
+                }
+                // bound the output by the buffer, not the pooled array
+                compressedSize = compress(inputArray, inputOffset, length, outputArray, 0, level);
+                if (compressedSize > output.remaining()) {
+                    throw new IOException("compression failure");
+                }
+                output.duplicate().put(outputArray, 0, compressedSize);
+            }
+            input.position(input.position() + length);
+            output.position(output.position() + compressedSize);
+            return compressedSize;
+        }
+
+        private byte[] inputArray(int length) {
+            byte[] array = inputThreadLocal.get();
+            if (array.length < length) {
+                array = new byte[length];
+                inputThreadLocal.set(array);
+            }
+            return array;
+        }
+
+        private static void invoke(MethodHandle setInput, Object inflaterOrDeflater, ByteBuffer input) {
+            try {
+                setInput.invoke(inflaterOrDeflater, input);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
     }
 
     private static final int CALCULATE_THRESHOLD = 4 * 1024 * 1024;// 4 MiB page
     private static final int MAX_CAPACITY = Integer.MAX_VALUE - 1;
 
+    /**
+     * Returns {@code buffer}, or a larger copy of it if it has less than {@code preferredSize}
+     * bytes left. Direct buffers stay direct when the inflater can write to them in place.
+     */
     protected static ByteBuffer prepareDecompressBuffer(ByteBuffer buffer, int preferredSize) {
         if (buffer == null) {
-            return ByteBuffer.allocateDirect(preferredSize);
+            return ByteBuffer.allocate(preferredSize);
         }
 
-        int oldCapacity = buffer.capacity();
+        int oldCapacity = buffer.limit();
         int minNewCapacity = buffer.position() + preferredSize;
+        boolean writable = buffer.hasArray() || INFLATER_INFLATE != null;
 
         // we need to grow the bytebuffer
-        if (minNewCapacity > oldCapacity) {
+        if (minNewCapacity > oldCapacity || !writable) {
             if (minNewCapacity >= MAX_CAPACITY) {
                 throw new IllegalStateException("Decompression buffer has reached maximum size: " + MAX_CAPACITY);
             }
@@ -160,10 +340,9 @@ public class Zlib {
                 }
             }
 
-            ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
-            buffer.position(0).limit(oldCapacity);
-            newBuffer.position(0).limit(oldCapacity);
-            newBuffer.put(buffer).clear();
+            ByteBuffer newBuffer = buffer.isDirect() && writable ? ByteBuffer.allocateDirect(newCapacity) : ByteBuffer.allocate(newCapacity);
+            buffer.flip();
+            newBuffer.put(buffer);
             return newBuffer;
         }
         return buffer;
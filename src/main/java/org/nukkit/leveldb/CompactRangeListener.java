@@ -0,0 +1,14 @@
+package org.nukkit.leveldb;
+
+/**
+ * Receives the progress of a range compaction started with
+ * {@link org.iq80.leveldb.impl.BedrockDB#compactRange(byte[], byte[], CompactRangeListener)}.
+ */
+public interface CompactRangeListener {
+
+    /**
+     * Called once the range has been pushed from {@code level} into the next one.
+     * The compaction is complete when {@code level} equals {@code lastLevel}.
+     */
+    void levelCompacted(int level, int lastLevel);
+}
@@ -0,0 +1,89 @@
+package org.nukkit.leveldb;
+
+import java.util.Arrays;
+
+import static org.iq80.leveldb.impl.DbConstants.NUM_LEVELS;
+
+/**
+ * Chooses how the blocks of new tables are compressed, per level of the tree. Tables written
+ * by memtable flushes use the settings of level 0.
+ * <p>
+ * Young levels are rewritten soon, so a cheap setting pays off there, while the bottom levels
+ * hold most of the data for a long time and are worth a higher deflate level.
+ */
+public class CompressionPolicy {
+    public static final int DEFAULT_DEFLATE_LEVEL = -1;
+    public static final double DEFAULT_MIN_SPACE_SAVINGS = 0.125;
+
+    private final ExtendedCompressionType[] compressionTypes = new ExtendedCompressionType[NUM_LEVELS];
+    private final int[] deflateLevels = new int[NUM_LEVELS];
+    private double minSpaceSavings = DEFAULT_MIN_SPACE_SAVINGS;
+
+    public CompressionPolicy(ExtendedCompressionType compressionType) {
+        this(compressionType, DEFAULT_DEFLATE_LEVEL);
+    }
+
+    /**
+     * Creates a policy compressing all levels alike.
+     *
+     * @param deflateLevel the deflate level for ZLIB and ZLIB_RAW, 0-9 or -1 for the default
+     */
+    public CompressionPolicy(ExtendedCompressionType compressionType, int deflateLevel) {
+        ExtendedOptions.checkArgNotNull(compressionType, "compressionType");
+        checkDeflateLevel(deflateLevel);
+        Arrays.fill(compressionTypes, compressionType);
+        Arrays.fill(deflateLevels, deflateLevel);
+    }
+
+    /**
+     * Overrides the compression of tables written to {@code level}.
+     */
+    public CompressionPolicy level(int level, ExtendedCompressionType compressionType, int deflateLevel) {
+        if (level < 0 || level >= NUM_LEVELS) {
+            throw new IllegalArgumentException("The level argument must be between 0 and " + (NUM_LEVELS - 1));
+        }
+        ExtendedOptions.checkArgNotNull(compressionType, "compressionType");
+        checkDeflateLevel(deflateLevel);
+        compressionTypes[level] = compressionType;
+        deflateLevels[level] = deflateLevel;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of its size a block must shrink by to be stored compressed. Blocks
+     * that compress worse are stored as they are, so reading them costs no decompression.
+     */
+    public CompressionPolicy minSpaceSavings(double minSpaceSavings) {
+        if (!(minSpaceSavings >= 0 && minSpaceSavings < 1)) {
+            throw new IllegalArgumentException("The minSpaceSavings argument must be at least 0 and below 1");
+        }
+        this.minSpaceSavings = minSpaceSavings;
+        return this;
+    }
+
+    public ExtendedCompressionType compressionType(int level) {
+        return compressionTypes[level];
+    }
+
+    public int deflateLevel(int level) {
+        return deflateLevels[level];
+    }
+
+    public double minSpaceSavings() {
+        return minSpaceSavings;
+    }
+
+    /**
+     * Returns the largest size a block of {@code rawLength} bytes may be compressed to and
+     * still be stored compressed.
+     */
+    public int maxCompressedLength(int rawLength) {
+        return (int) (rawLength - (long) Math.ceil(rawLength * minSpaceSavings));
+    }
+
+    private static void checkDeflateLevel(int deflateLevel) {
+        if (deflateLevel < -1 || deflateLevel > 9) {
+            throw new IllegalArgumentException("The deflateLevel argument must be between -1 and 9");
+        }
+    }
+}
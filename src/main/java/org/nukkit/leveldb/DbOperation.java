@@ -0,0 +1,18 @@
+package org.nukkit.leveldb;
+
+/**
+ * The operations whose latencies are tracked, see
+ * {@link org.iq80.leveldb.impl.BedrockDB#getLatencyHistogram(DbOperation)}.
+ */
+public enum DbOperation {
+    GET,
+    MULTI_GET,
+    /**
+     * Puts, deletes and batch writes, including the wait for the log and any write stall.
+     */
+    WRITE,
+    /**
+     * Iterator seeks, including seeks to the first entry.
+     */
+    ITERATOR_SEEK
+}
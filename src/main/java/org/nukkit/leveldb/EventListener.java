@@ -0,0 +1,62 @@
+package org.nukkit.leveldb;
+
+import org.iq80.leveldb.impl.Filename.FileType;
+
+/**
+ * Receives the background work and the write stalls of a database, set with
+ * {@link ExtendedOptions#eventListener(EventListener)}. The methods are called on database
+ * threads, some while the database lock is held, so they must return quickly and must not
+ * call back into the database. All of them do nothing by default.
+ */
+public interface EventListener {
+
+    /**
+     * Called before a memtable is written to table {@code fileNumber}.
+     */
+    default void flushStarted(long fileNumber) {
+    }
+
+    /**
+     * Called once a memtable has been written to table {@code fileNumber}, placed in
+     * {@code level}.
+     */
+    default void flushCompleted(long fileNumber, int level, long fileSize, long micros) {
+    }
+
+    /**
+     * Called before the tables {@code inputFileNumbers} of {@code level} and the next level
+     * are merged into the next level.
+     */
+    default void compactionStarted(int level, long[] inputFileNumbers, long bytesRead) {
+    }
+
+    /**
+     * Called once a compaction has written its output tables and installed them. Compactions
+     * that fail or are abandoned when the database is closed start without completing.
+     */
+    default void compactionCompleted(int level, long[] inputFileNumbers, long[] outputFileNumbers,
+                                     long bytesRead, long bytesWritten, long micros) {
+    }
+
+    /**
+     * Called when a write is about to be delayed or blocked by the background work falling
+     * behind, see {@link WriteStall}.
+     */
+    default void writeStallStarted(WriteStall stall) {
+    }
+
+    default void writeStallEnded(WriteStall stall, long micros) {
+    }
+
+    /**
+     * Called after an obsolete file, such as a compacted table or an old log, is deleted.
+     */
+    default void fileDeleted(long fileNumber, FileType type) {
+    }
+
+    /**
+     * Called when a flush or compaction fails. The database refuses further operations.
+     */
+    default void backgroundError(Throwable error) {
+    }
+}
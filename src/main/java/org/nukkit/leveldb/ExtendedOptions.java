@@ -1,10 +1,21 @@
 package org.nukkit.leveldb;
 
 import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.table.BloomFilterPolicy;
+import org.iq80.leveldb.table.FilterPolicy;
 
 public class ExtendedOptions extends org.iq80.leveldb.Options {
 
     private ExtendedCompressionType compressionType = ExtendedCompressionType.ZLIB_RAW;
+    // same as the worlds written by Bedrock
+    private FilterPolicy filterPolicy = new BloomFilterPolicy(10);
+    private int maxBackgroundCompactions = 1;
+    private int maxSubcompactions = 1;
+    private int compressionThreads = 1;
+    private int readaheadThreads = 2;
+    private CompressionPolicy compressionPolicy;
+    private MemTableFactory memTableFactory = MemTableFactory.SKIP_LIST;
+    private EventListener eventListener;
 
     static void checkArgNotNull(Object value, String name) {
         if (value == null) {
@@ -31,4 +42,132 @@ public class ExtendedOptions extends org.iq80.leveldb.Options {
         this.compressionType = compressionType;
         return this;
     }
+
+    /**
+     * Returns the compression policy set, or one compressing every level with
+     * {@link #extendedCompressionType()}.
+     */
+    public CompressionPolicy compressionPolicy() {
+        if (compressionPolicy == null) {
+            return new CompressionPolicy(compressionType);
+        }
+        return compressionPolicy;
+    }
+
+    /**
+     * Sets how new tables are compressed depending on their level, taking precedence over
+     * {@link #extendedCompressionType(ExtendedCompressionType)}. Pass {@code null} to
+     * compress all levels with the extended compression type again.
+     */
+    public ExtendedOptions compressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        return this;
+    }
+
+    public FilterPolicy filterPolicy() {
+        return filterPolicy;
+    }
+
+    /**
+     * Sets the filter written to new tables and consulted before reading their data blocks,
+     * or {@code null} to neither write nor read filters.
+     */
+    public ExtendedOptions filterPolicy(FilterPolicy filterPolicy) {
+        this.filterPolicy = filterPolicy;
+        return this;
+    }
+
+    public int maxBackgroundCompactions() {
+        return maxBackgroundCompactions;
+    }
+
+    /**
+     * Sets how many level compactions may run at once. Compactions only run side by side
+     * when they touch different levels or key ranges; memtable flushes always have a
+     * thread of their own.
+     */
+    public ExtendedOptions maxBackgroundCompactions(int maxBackgroundCompactions) {
+        if (maxBackgroundCompactions < 1) {
+            throw new IllegalArgumentException("The maxBackgroundCompactions argument must be positive");
+        }
+        this.maxBackgroundCompactions = maxBackgroundCompactions;
+        return this;
+    }
+
+    public int maxSubcompactions() {
+        return maxSubcompactions;
+    }
+
+    /**
+     * Sets into how many key ranges a single compaction may be split, each range being
+     * merged and compressed on a thread of its own.
+     */
+    public ExtendedOptions maxSubcompactions(int maxSubcompactions) {
+        if (maxSubcompactions < 1) {
+            throw new IllegalArgumentException("The maxSubcompactions argument must be positive");
+        }
+        this.maxSubcompactions = maxSubcompactions;
+        return this;
+    }
+
+    public int compressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * Sets how many threads compress the data blocks of tables being written. With more
+     * than one, blocks are compressed in the background and written in order, so flushes
+     * and compactions are no longer bound to a single core.
+     */
+    public ExtendedOptions compressionThreads(int compressionThreads) {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("The compressionThreads argument must be positive");
+        }
+        this.compressionThreads = compressionThreads;
+        return this;
+    }
+
+    public int readaheadThreads() {
+        return readaheadThreads;
+    }
+
+    /**
+     * Sets how many threads read data blocks ahead for iterators created with
+     * {@link ExtendedReadOptions#readaheadBlocks(int)}.
+     */
+    public ExtendedOptions readaheadThreads(int readaheadThreads) {
+        if (readaheadThreads < 1) {
+            throw new IllegalArgumentException("The readaheadThreads argument must be positive");
+        }
+        this.readaheadThreads = readaheadThreads;
+        return this;
+    }
+
+    public MemTableFactory memTableFactory() {
+        return memTableFactory;
+    }
+
+    /**
+     * Sets how memtables are represented. {@link MemTableFactory#OFF_HEAP} keeps them out of
+     * the reach of the garbage collector, using about twice {@link #writeBufferSize(int)} of
+     * direct memory.
+     */
+    public ExtendedOptions memTableFactory(MemTableFactory memTableFactory) {
+        checkArgNotNull(memTableFactory, "memTableFactory");
+        this.memTableFactory = memTableFactory;
+        return this;
+    }
+
+    public EventListener eventListener() {
+        return eventListener;
+    }
+
+    /**
+     * Sets the listener told about flushes, compactions, write stalls and file deletions,
+     * or {@code null} for none.
+     */
+    public ExtendedOptions eventListener(EventListener eventListener) {
+        this.eventListener = eventListener;
+        return this;
+    }
 }
@@ -0,0 +1,100 @@
+package org.nukkit.leveldb;
+
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+
+import java.util.Arrays;
+
+public class ExtendedReadOptions extends ReadOptions {
+
+    private int readaheadBlocks;
+    private byte[] iterateLowerBound;
+    private byte[] iterateUpperBound;
+
+    @Override
+    public ExtendedReadOptions snapshot(Snapshot snapshot) {
+        super.snapshot(snapshot);
+        return this;
+    }
+
+    @Override
+    public ExtendedReadOptions fillCache(boolean fillCache) {
+        super.fillCache(fillCache);
+        return this;
+    }
+
+    @Override
+    public ExtendedReadOptions verifyChecksums(boolean verifyChecksums) {
+        super.verifyChecksums(verifyChecksums);
+        return this;
+    }
+
+    public int readaheadBlocks() {
+        return readaheadBlocks;
+    }
+
+    /**
+     * Sets how many data blocks of each table an iterator reads and decompresses ahead of
+     * the one it is on, using the threads set by {@link ExtendedOptions#readaheadThreads(int)}.
+     * Worth it for long sequential scans; 0, the default, reads every block when reached.
+     */
+    public ExtendedReadOptions readaheadBlocks(int readaheadBlocks) {
+        if (readaheadBlocks < 0) {
+            throw new IllegalArgumentException("The readaheadBlocks argument cannot be negative");
+        }
+        this.readaheadBlocks = readaheadBlocks;
+        return this;
+    }
+
+    public byte[] iterateLowerBound() {
+        return iterateLowerBound;
+    }
+
+    /**
+     * Sets the first key iterators may return, or {@code null} for no bound. Seeking to the
+     * first entry or before the bound positions the iterator at the bound.
+     */
+    public ExtendedReadOptions iterateLowerBound(byte[] iterateLowerBound) {
+        this.iterateLowerBound = iterateLowerBound;
+        return this;
+    }
+
+    public byte[] iterateUpperBound() {
+        return iterateUpperBound;
+    }
+
+    /**
+     * Sets the key before which iterators end, or {@code null} for no bound. Tables and
+     * blocks holding only keys past the bound are never read.
+     */
+    public ExtendedReadOptions iterateUpperBound(byte[] iterateUpperBound) {
+        this.iterateUpperBound = iterateUpperBound;
+        return this;
+    }
+
+    /**
+     * Bounds iterators to the keys starting with {@code prefix}, such as the records of one
+     * chunk. Relies on the default bytewise comparator.
+     */
+    public ExtendedReadOptions prefix(byte[] prefix) {
+        ExtendedOptions.checkArgNotNull(prefix, "prefix");
+        iterateLowerBound = prefix.clone();
+        iterateUpperBound = prefixSuccessor(prefix);
+        return this;
+    }
+
+    /**
+     * Returns the smallest key greater than every key starting with {@code prefix},
+     * or {@code null} if there is none.
+     */
+    private static byte[] prefixSuccessor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xff) {
+                byte[] successor = Arrays.copyOf(prefix, i + 1);
+                successor[i]++;
+                return successor;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,116 @@
+package org.nukkit.leveldb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in log-linear buckets: every power of two is split into eight buckets of
+ * equal width, so a bucket is never wider than an eighth of the latencies it holds, and
+ * latencies below 16 nanoseconds get a bucket each. The last bucket also holds everything
+ * beyond 2<sup>40</sup> nanoseconds, about 18 minutes. Recording takes no lock, so every
+ * operation can be recorded, and the cumulative counts map directly onto the buckets of a
+ * Prometheus histogram.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    // powers of two up to 2^40 nanoseconds, the first two sharing the exact buckets below 16
+    public static final int BUCKETS = (40 - 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        counts[bucket(nanos)].increment();
+        totalNanos.add(nanos);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < 2 * SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket);
+    }
+
+    /**
+     * Returns the inclusive lower bound of {@code bucket} in nanoseconds.
+     */
+    public static long getLowerBoundNanos(int bucket) {
+        checkBucket(bucket);
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Returns the exclusive upper bound of {@code bucket} in nanoseconds.
+     */
+    public static long getUpperBoundNanos(int bucket) {
+        checkBucket(bucket);
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : getLowerBoundNanos(bucket + 1);
+    }
+
+    private static void checkBucket(int bucket) {
+        if (bucket < 0 || bucket >= BUCKETS) {
+            throw new IllegalArgumentException("The bucket argument must be between 0 and " + (BUCKETS - 1));
+        }
+    }
+
+    public long getCount(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Returns the given percentile, between 0 and 100, of the recorded latencies, or 0 if
+     * none were recorded. The latencies of the bucket holding it are taken to be spread
+     * evenly over the bucket, which puts the estimate within an eighth of the true value.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("The percentile argument must be between 0 and 100");
+        }
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            if (seen + snapshot[i] >= rank) {
+                long lower = getLowerBoundNanos(i);
+                long width = getUpperBoundNanos(i) - lower;
+                // the middle of the rank's share of the bucket
+                return lower + (long) (width * (rank - seen - 0.5) / snapshot[i]);
+            }
+            seen += snapshot[i];
+        }
+        return getLowerBoundNanos(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,43 @@
+package org.nukkit.leveldb;
+
+import org.iq80.leveldb.impl.InternalKeyComparator;
+import org.iq80.leveldb.impl.MemTable;
+import org.iq80.leveldb.impl.OffHeapMemTable;
+import org.iq80.leveldb.impl.PrefixHashMemTable;
+import org.iq80.leveldb.table.BytewiseComparator;
+
+/**
+ * Creates the memtables new writes go to, set with
+ * {@link ExtendedOptions#memTableFactory(MemTableFactory)}.
+ */
+public interface MemTableFactory {
+
+    /**
+     * One skip list over all keys, the default.
+     */
+    MemTableFactory SKIP_LIST = MemTable::new;
+
+    /**
+     * A skip list kept in direct memory, see {@link OffHeapMemTable}.
+     */
+    MemTableFactory OFF_HEAP = OffHeapMemTable::new;
+
+    MemTable newMemTable(InternalKeyComparator internalKeyComparator);
+
+    /**
+     * Hashes keys by their first {@code prefixLength} bytes into small skip lists, see
+     * {@link PrefixHashMemTable}. With a prefix length of 8, the keys of a chunk share a
+     * bucket. Databases with a custom comparator get {@link #SKIP_LIST} memtables instead.
+     */
+    static MemTableFactory hashBucketed(int prefixLength) {
+        if (prefixLength < 1) {
+            throw new IllegalArgumentException("The prefixLength argument must be positive");
+        }
+        return internalKeyComparator -> {
+            if (internalKeyComparator.getUserComparator() instanceof BytewiseComparator) {
+                return new PrefixHashMemTable(internalKeyComparator, prefixLength);
+            }
+            return new MemTable(internalKeyComparator);
+        };
+    }
+}
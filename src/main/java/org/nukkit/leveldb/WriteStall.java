@@ -0,0 +1,20 @@
+package org.nukkit.leveldb;
+
+/**
+ * Why a write waited before going to the memtable.
+ */
+public enum WriteStall {
+    /**
+     * Level 0 is filling up, so each write is delayed by a millisecond to let compactions
+     * catch up.
+     */
+    LEVEL0_SLOWDOWN,
+    /**
+     * The memtable is full and the previous one is still being flushed.
+     */
+    MEMTABLE_FULL,
+    /**
+     * Level 0 holds too many files, so writes wait for a compaction.
+     */
+    LEVEL0_STOP
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.iq80.leveldb.DBComparator;
+import org.iq80.leveldb.DBException;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nukkit.leveldb.EventListener;
+import org.nukkit.leveldb.ExtendedCompressionType;
+import org.nukkit.leveldb.ExtendedOptions;
+import org.nukkit.leveldb.ExtendedReadOptions;
+import org.nukkit.leveldb.MemTableFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Concurrent writers grouped into shared log records, readers racing the memtable flushes
+ * and compactions, failed writes and compactions, and multiGet against single gets.
+ */
+public class BedrockDBTest {
+    private static final int WRITERS = 4;
+    private static final int WRITES = 2000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private File directory;
+    private BedrockDB db;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        db = new BedrockDB(options(MemTableFactory.SKIP_LIST), directory);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        db.close();
+    }
+
+    @Test
+    public void concurrentWritesAreAllApplied() throws Exception {
+        writeConcurrently();
+        assertAllWritten();
+
+        // and survive a reopen from the log and tables
+        db.close();
+        db = new BedrockDB(options(MemTableFactory.SKIP_LIST), directory);
+        assertAllWritten();
+    }
+
+    @Test
+    public void concurrentWritesToOffHeapMemTables() throws Exception {
+        db.close();
+        db = new BedrockDB(options(MemTableFactory.OFF_HEAP), folder.newFolder());
+        writeConcurrently();
+        assertAllWritten();
+    }
+
+    @Test
+    public void readersSeeEveryCompletedWrite() throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        // a reader following one writer must never miss a value it has seen written,
+        // whichever memtable or table holds it
+        Future<Integer> reader = executor.submit(() -> {
+            int reads = 0;
+            while (!done.get()) {
+                byte[] last = db.get(bytes("last"));
+                if (last == null) {
+                    continue;
+                }
+                int written = Integer.parseInt(new String(last, UTF_8));
+                for (int i = Math.max(0, written - 10); i <= written; i++) {
+                    assertArrayEquals(value(0, i), db.get(key(0, i)));
+                }
+                reads++;
+            }
+            return reads;
+        });
+        for (int i = 0; i < WRITES * 2; i++) {
+            try (WriteBatch batch = db.createWriteBatch()) {
+                batch.put(key(0, i), value(0, i));
+                db.write(batch);
+            }
+            db.put(bytes("last"), bytes(Integer.toString(i)));
+        }
+        done.set(true);
+        assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+    }
+
+    @Test
+    public void readersNeverMissOverwrittenKeys() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            db.put(key(0, i), value(0, 0));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        // compactions drop the versions hidden by the overwrites, which a read must never
+        // be left with only the newer, invisible version of
+        Future<Integer> reader = executor.submit(() -> {
+            List<byte[]> keys = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                keys.add(key(0, i));
+            }
+            int reads = 0;
+            while (!done.get()) {
+                for (int i = 0; i < 100; i++) {
+                    assertTrue(db.get(key(0, i)) != null);
+                }
+                for (byte[] value : db.multiGet(keys)) {
+                    assertTrue(value != null);
+                }
+                reads++;
+            }
+            return reads;
+        });
+        for (int round = 1; round <= 100; round++) {
+            for (int i = 0; i < 100; i++) {
+                db.put(key(0, i), value(0, round));
+            }
+        }
+        done.set(true);
+        assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+    }
+
+    @Test
+    public void boundedScansMatchFullScan() throws Exception {
+        // tables in several levels, overwritten and deleted in part by the memtables
+        writeConcurrently();
+        db.compactRange(null, null);
+        for (int i = 0; i < WRITES; i += 5) {
+            db.put(key(1, i), value(2, i));
+        }
+        db.flushMemTable();
+        for (int i = 0; i < WRITES; i += 7) {
+            db.delete(key(2, i));
+        }
+
+        List<String> all = new ArrayList<>();
+        try (ExtendedIteratorAdapter iterator = db.iterator()) {
+            for (iterator.seekToFirst(); iterator.hasNext(); ) {
+                Entry<byte[], byte[]> entry = iterator.next();
+                all.add(new String(entry.getKey(), UTF_8) + '=' + new String(entry.getValue(), UTF_8));
+            }
+        }
+
+        for (int readaheadBlocks : new int[]{0, 2}) {
+            ExtendedReadOptions options = new ExtendedReadOptions()
+                    .iterateLowerBound(key(1, 500))
+                    .iterateUpperBound(key(2, 1500))
+                    .readaheadBlocks(readaheadBlocks);
+            List<String> bounded = new ArrayList<>();
+            try (ExtendedIteratorAdapter iterator = db.iterator(options)) {
+                for (iterator.seekToFirst(); iterator.hasNext(); ) {
+                    Entry<byte[], byte[]> entry = iterator.next();
+                    bounded.add(new String(entry.getKey(), UTF_8) + '=' + new String(entry.getValue(), UTF_8));
+                }
+            }
+            int first = Collections.binarySearch(all, new String(key(1, 500), UTF_8));
+            int last = Collections.binarySearch(all, new String(key(2, 1500), UTF_8));
+            assertEquals(all.subList(-first - 1, -last - 1), bounded);
+        }
+    }
+
+    @Test
+    public void multiGetMatchesGet() throws Exception {
+        writeConcurrently();
+        for (int i = 0; i < WRITES; i += 3) {
+            db.delete(key(1, i));
+        }
+
+        List<byte[]> keys = new ArrayList<>();
+        for (int writer = WRITERS; writer >= 0; writer--) {
+            for (int i = 0; i < WRITES; i += 7) {
+                keys.add(key(writer, i));
+            }
+        }
+        keys.add(bytes("missing"));
+        keys.add(key(2, 0));
+
+        List<byte[]> values = db.multiGet(keys);
+        assertEquals(keys.size(), values.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(db.get(keys.get(i)), values.get(i));
+        }
+        assertNull(values.get(keys.size() - 2));
+    }
+
+    @Test
+    public void multiGetReadsSnapshot() throws Exception {
+        db.put(key(0, 0), value(0, 0));
+        db.put(key(0, 1), value(0, 1));
+        try (Snapshot snapshot = db.getSnapshot()) {
+            db.put(key(0, 0), bytes("overwritten"));
+            db.delete(key(0, 1));
+            db.put(key(0, 2), value(0, 2));
+            db.flushMemTable();
+
+            List<byte[]> keys = new ArrayList<>();
+            keys.add(key(0, 2));
+            keys.add(key(0, 1));
+            keys.add(key(0, 0));
+            List<byte[]> values = db.multiGet(keys, new ReadOptions().snapshot(snapshot));
+            assertNull(values.get(0));
+            assertArrayEquals(value(0, 1), values.get(1));
+            assertArrayEquals(value(0, 0), values.get(2));
+        }
+    }
+
+    @Test
+    public void valueBuffersStartAtTheValue() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            db.put(key(0, i), ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(i).putInt(i * 2).array());
+        }
+        db.flushMemTable();
+
+        // absolute reads, within the value rather than the table block holding it
+        assertValueBuffer(5, db.getBuffer(key(0, 5), new ReadOptions()));
+        try (ExtendedIteratorAdapter iterator = db.iterator()) {
+            iterator.seek(key(0, 7));
+            assertValueBuffer(7, iterator.peekNextValueBuffer());
+        }
+    }
+
+    @Test
+    public void failedWriteFailsLaterWritesAndFlushes() throws IOException {
+        db.close();
+        Slice poison = Slices.wrappedBuffer(bytes("poison"));
+        ExtendedOptions options = options(internalKeyComparator -> new MemTable(internalKeyComparator) {
+            @Override
+            public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value) {
+                if (key.equals(poison)) {
+                    throw new IllegalStateException("injected");
+                }
+                super.add(sequenceNumber, valueType, key, value);
+            }
+        });
+        List<Throwable> reported = new ArrayList<>();
+        options.eventListener(new EventListener() {
+            @Override
+            public void backgroundError(Throwable error) {
+                reported.add(error);
+            }
+        });
+        db = new BedrockDB(options, folder.newFolder());
+        db.put(key(0, 0), value(0, 0));
+
+        try {
+            db.put(bytes("poison"), bytes("value"));
+            fail("expected DBException");
+        } catch (DBException e) {
+            assertEquals("injected", e.getCause().getMessage());
+        }
+        assertEquals(1, reported.size());
+
+        try {
+            db.put(key(0, 1), value(0, 1));
+            fail("expected DBException");
+        } catch (DBException expected) {
+        }
+        try {
+            db.flushMemTable();
+            fail("expected DBException");
+        } catch (DBException expected) {
+        }
+    }
+
+    @Test
+    public void failedRecoveryLeavesNoTablesBehind() throws Exception {
+        for (int i = 0; i < WRITES; i++) {
+            db.put(key(0, i), value(0, i));
+        }
+        db.put(bytes("poison"), bytes("value"));
+        db.close();
+        List<String> files = Arrays.asList(directory.list());
+
+        // recovery writes several tables before it replays the failing record
+        Slice poison = Slices.wrappedBuffer(bytes("poison"));
+        try {
+            db = new BedrockDB(options(internalKeyComparator -> new MemTable(internalKeyComparator) {
+                @Override
+                public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value) {
+                    if (key.equals(poison)) {
+                        throw new IllegalStateException("injected");
+                    }
+                    super.add(sequenceNumber, valueType, key, value);
+                }
+            }), directory);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        List<String> remaining = Arrays.asList(directory.list());
+        assertTrue(remaining.toString(), files.containsAll(remaining));
+
+        // and the lock is released
+        db = new BedrockDB(options(MemTableFactory.SKIP_LIST), directory);
+        for (int i = 0; i < WRITES; i++) {
+            assertArrayEquals(value(0, i), db.get(key(0, i)));
+        }
+    }
+
+    @Test
+    public void failedSubcompactionReleasesAllOutputs() throws Exception {
+        db.close();
+        AtomicBoolean failing = new AtomicBoolean();
+        ExtendedOptions options = new ExtendedOptions();
+        options.createIfMissing(true);
+        options.maxSubcompactions(4);
+        options.extendedCompressionType(ExtendedCompressionType.NONE);
+        options.comparator(new DBComparator() {
+            @Override
+            public String name() {
+                return "test.failing";
+            }
+
+            @Override
+            public int compare(byte[] left, byte[] right) {
+                if (failing.get() && Thread.currentThread().getName().startsWith("leveldb-subcompaction")) {
+                    throw new IllegalStateException("injected");
+                }
+                return UnsignedBytes.lexicographicalComparator().compare(left, right);
+            }
+
+            @Override
+            public byte[] findShortestSeparator(byte[] start, byte[] limit) {
+                return start;
+            }
+
+            @Override
+            public byte[] findShortSuccessor(byte[] key) {
+                return key;
+            }
+        });
+        db = new BedrockDB(options, folder.newFolder());
+
+        // three overlapping level 0 tables, enough input for four subcompactions
+        Random random = new Random(1);
+        byte[] value = new byte[1000];
+        for (int table = 0; table < 3; table++) {
+            for (int i = 0; i < 3000; i++) {
+                random.nextBytes(value);
+                db.put(key(0, random.nextInt(100000)), value);
+            }
+            db.flushMemTable();
+        }
+
+        failing.set(true);
+        try {
+            db.compactRange(null, null);
+            fail("expected DBException");
+        } catch (DBException expected) {
+        }
+
+        Field pendingOutputs = BedrockDB.class.getDeclaredField("pendingOutputs");
+        pendingOutputs.setAccessible(true);
+        assertEquals(Collections.emptyList(), pendingOutputs.get(db));
+    }
+
+    @Test
+    public void closeStopsQueuedRangeCompactions() throws Exception {
+        writeConcurrently();
+        List<Future<Void>> compactions = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            db.put(key(0, i), value(1, i));
+            compactions.add(db.compactRangeInBackground(null, null, null));
+        }
+
+        executor.submit(() -> db.close()).get(1, TimeUnit.MINUTES);
+        for (Future<Void> compaction : compactions) {
+            try {
+                compaction.get(1, TimeUnit.MINUTES);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DbImpl.DatabaseShutdownException);
+            }
+        }
+    }
+
+    @Test
+    public void filteredReadsTriggerSeekCompactions() throws Exception {
+        assertReadsTriggerSeekCompaction();
+    }
+
+    @Test
+    public void unfilteredReadsTriggerSeekCompactions() throws Exception {
+        db.close();
+        db = new BedrockDB(options(MemTableFactory.SKIP_LIST).filterPolicy(null), folder.newFolder());
+        assertReadsTriggerSeekCompaction();
+    }
+
+    private void assertReadsTriggerSeekCompaction() {
+        // even keys in level 2 under a level 1 table of odd keys, which every read of an even
+        // key probes first
+        for (int i = 0; i < 300; i += 2) {
+            db.put(key(0, i), value(0, i));
+        }
+        db.flushMemTable();
+        db.compactRange(0, Slices.wrappedBuffer(key(0, 0)), Slices.wrappedBuffer(key(0, 299)));
+        db.compactRange(1, Slices.wrappedBuffer(key(0, 0)), Slices.wrappedBuffer(key(0, 299)));
+        for (int i = 1; i < 300; i += 2) {
+            db.put(key(0, i), value(0, i));
+        }
+        db.flushMemTable();
+        assertEquals("1", db.getProperty("leveldb.num-files-at-level1"));
+        assertEquals("1", db.getProperty("leveldb.num-files-at-level2"));
+
+        // the level 1 table allows 100 seeks before it is compacted into level 2
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (!db.getProperty("leveldb.num-files-at-level1").equals("0")) {
+            assertTrue(System.nanoTime() < deadline);
+            for (int i = 0; i < 300; i += 2) {
+                assertArrayEquals(value(0, i), db.get(key(0, i)));
+            }
+        }
+        assertEquals("1", db.getProperty("leveldb.num-files-at-level2"));
+    }
+
+    private void writeConcurrently() throws Exception {
+        List<Future<Void>> writers = new ArrayList<>();
+        for (int writer = 0; writer < WRITERS; writer++) {
+            int id = writer;
+            writers.add(executor.submit((Callable<Void>) () -> {
+                for (int i = 0; i < WRITES; i++) {
+                    db.put(key(id, i), value(id, i));
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> writer : writers) {
+            writer.get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private void assertAllWritten() {
+        for (int writer = 0; writer < WRITERS; writer++) {
+            for (int i = 0; i < WRITES; i++) {
+                assertArrayEquals(value(writer, i), db.get(key(writer, i)));
+            }
+        }
+    }
+
+    private static void assertValueBuffer(int i, ByteBuffer value) {
+        assertTrue(value.isReadOnly());
+        assertEquals(0, value.position());
+        assertEquals(8, value.capacity());
+        assertEquals(8, value.remaining());
+        assertEquals(i, value.getInt(0));
+        assertEquals(i * 2, value.getInt(4));
+    }
+
+    private static ExtendedOptions options(MemTableFactory memTableFactory) {
+        ExtendedOptions options = new ExtendedOptions();
+        options.createIfMissing(true);
+        // small memtables, so that writes race flushes and compactions
+        options.writeBufferSize(32 * 1024);
+        options.memTableFactory(memTableFactory);
+        return options;
+    }
+
+    private static byte[] key(int writer, int i) {
+        return bytes(String.format("key-%d-%06d", writer, i));
+    }
+
+    private static byte[] value(int writer, int i) {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 100) {
+            value.append(writer).append(':').append(i).append(';');
+        }
+        return bytes(value.toString());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.iq80.leveldb.impl.MemTable.MemTableIterator;
+import org.iq80.leveldb.table.BytewiseComparator;
+import org.iq80.leveldb.util.InternalIterator;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.iq80.leveldb.impl.SequenceNumber.MAX_SEQUENCE_NUMBER;
+import static org.iq80.leveldb.impl.ValueType.DELETION;
+import static org.iq80.leveldb.impl.ValueType.VALUE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The off-heap and prefix hashed memtables must read exactly like the skip list memtable.
+ */
+public class MemTableConsistencyTest {
+    private static final int PREFIX_LENGTH = 4;
+    private static final int ENTRIES = 5000;
+
+    private final InternalKeyComparator comparator = new InternalKeyComparator(new BytewiseComparator());
+    private final Random random = new Random(42);
+
+    private MemTable expected;
+    private MemTable[] actual;
+    private long lastSequence;
+
+    @Before
+    public void setUp() {
+        expected = new MemTable(comparator);
+        actual = new MemTable[]{
+                new OffHeapMemTable(comparator),
+                new PrefixHashMemTable(comparator, PREFIX_LENGTH)
+        };
+        for (int i = 0; i < ENTRIES; i++) {
+            Slice key = randomKey();
+            ValueType valueType = random.nextInt(5) == 0 ? DELETION : VALUE;
+            Slice value = valueType == VALUE ? randomValue() : Slices.EMPTY_SLICE;
+            lastSequence++;
+            expected.add(lastSequence, valueType, key, value);
+            for (MemTable memTable : actual) {
+                memTable.add(lastSequence, valueType, key, value);
+            }
+        }
+    }
+
+    @Test
+    public void getMatchesSkipList() {
+        for (int i = 0; i < ENTRIES; i++) {
+            LookupKey key = new LookupKey(randomKey(), 1 + (long) random.nextInt((int) lastSequence));
+            LookupResult expectedResult = expected.get(key);
+            for (MemTable memTable : actual) {
+                String name = memTable.getClass().getSimpleName();
+                LookupResult result = memTable.get(key);
+                if (expectedResult == null) {
+                    assertNull(name, result);
+                    continue;
+                }
+                assertEquals(name, expectedResult.isDeleted(), result.isDeleted());
+                if (!expectedResult.isDeleted()) {
+                    assertEquals(name, expectedResult.getValue(), result.getValue());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void iterationMatchesSkipList() {
+        for (MemTable memTable : actual) {
+            MemTableIterator expectedIterator = expected.iterator();
+            MemTableIterator iterator = memTable.iterator();
+            expectedIterator.seekToFirst();
+            iterator.seekToFirst();
+            assertSameEntries(memTable.getClass().getSimpleName(), expectedIterator, iterator, Integer.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void seekMatchesSkipList() {
+        for (int i = 0; i < 1000; i++) {
+            long sequence = random.nextBoolean() ? MAX_SEQUENCE_NUMBER : 1 + (long) random.nextInt((int) lastSequence);
+            InternalKey target = new InternalKey(randomKey(), sequence, VALUE);
+            for (MemTable memTable : actual) {
+                MemTableIterator expectedIterator = expected.iterator();
+                MemTableIterator iterator = memTable.iterator();
+                expectedIterator.seek(target);
+                iterator.seek(target);
+                assertSameEntries(memTable.getClass().getSimpleName(), expectedIterator, iterator, 20);
+            }
+        }
+    }
+
+    private static void assertSameEntries(String name, InternalIterator expected, InternalIterator actual, int limit) {
+        for (int i = 0; i < limit; i++) {
+            if (!expected.hasNext()) {
+                assertFalse(name, actual.hasNext());
+                return;
+            }
+            assertTrue(name, actual.hasNext());
+            Map.Entry<InternalKey, Slice> expectedEntry = expected.next();
+            Map.Entry<InternalKey, Slice> entry = actual.next();
+            assertEquals(name, expectedEntry.getKey(), entry.getKey());
+            assertEquals(name, expectedEntry.getValue(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns a key of up to twice the prefix length over a small alphabet, so that keys
+     * repeat, share prefixes and are often shorter than the prefix.
+     */
+    private Slice randomKey() {
+        byte[] key = new byte[random.nextInt(PREFIX_LENGTH * 2 + 1)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) ('a' + random.nextInt(3));
+        }
+        return Slices.wrappedBuffer(key);
+    }
+
+    private Slice randomValue() {
+        byte[] value = new byte[random.nextInt(64)];
+        random.nextBytes(value);
+        return Slices.wrappedBuffer(value);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.impl;
+
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.iq80.leveldb.util.DbIterator;
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nukkit.leveldb.ExtendedOptions;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.iq80.leveldb.impl.DbConstants.NUM_LEVELS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compactions may only drop overwritten entries and deletion markers that no live snapshot
+ * can read.
+ */
+public class SnapshotCompactionTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private BedrockDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        ExtendedOptions options = new ExtendedOptions();
+        options.createIfMissing(true);
+        db = new BedrockDB(options, folder.newFolder());
+        // bound the key range, so that later tables overlap the first ones
+        db.put(bytes("a"), bytes("first"));
+        db.put(bytes("z"), bytes("last"));
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void overwrittenEntrySurvivesWhileSnapshotIsOpen() throws IOException {
+        db.put(bytes("k"), bytes("old"));
+        Snapshot snapshot = db.getSnapshot();
+        db.put(bytes("k"), bytes("new"));
+        flushAndCompactToLastLevel();
+
+        assertEquals(2, countEntries("k"));
+        assertArrayEquals(bytes("old"), db.get(bytes("k"), new ReadOptions().snapshot(snapshot)));
+        assertArrayEquals(bytes("new"), db.get(bytes("k")));
+
+        snapshot.close();
+        rewriteLastLevel();
+
+        assertEquals(1, countEntries("k"));
+        assertArrayEquals(bytes("new"), db.get(bytes("k")));
+    }
+
+    @Test
+    public void deletionSurvivesWhileSnapshotIsOpen() throws IOException {
+        db.put(bytes("k"), bytes("value"));
+        Snapshot snapshot = db.getSnapshot();
+        db.delete(bytes("k"));
+        flushAndCompactToLastLevel();
+
+        assertEquals(2, countEntries("k"));
+        assertArrayEquals(bytes("value"), db.get(bytes("k"), new ReadOptions().snapshot(snapshot)));
+        assertNull(db.get(bytes("k")));
+
+        snapshot.close();
+        rewriteLastLevel();
+
+        assertEquals(0, countEntries("k"));
+        assertNull(db.get(bytes("k")));
+    }
+
+    @Test
+    public void entriesBetweenSnapshotsAreDropped() throws IOException {
+        db.put(bytes("k"), bytes("v1"));
+        Snapshot first = db.getSnapshot();
+        db.put(bytes("k"), bytes("v2"));
+        db.put(bytes("k"), bytes("v3"));
+        Snapshot second = db.getSnapshot();
+        db.put(bytes("k"), bytes("v4"));
+        flushAndCompactToLastLevel();
+
+        // v2 is hidden from both snapshots by v3
+        assertEquals(3, countEntries("k"));
+        assertArrayEquals(bytes("v1"), db.get(bytes("k"), new ReadOptions().snapshot(first)));
+        assertArrayEquals(bytes("v3"), db.get(bytes("k"), new ReadOptions().snapshot(second)));
+        assertArrayEquals(bytes("v4"), db.get(bytes("k")));
+
+        first.close();
+        rewriteLastLevel();
+
+        assertEquals(2, countEntries("k"));
+        assertArrayEquals(bytes("v3"), db.get(bytes("k"), new ReadOptions().snapshot(second)));
+        second.close();
+    }
+
+    /**
+     * Flushes the memtable and compacts its table level by level down to the last level.
+     */
+    private void flushAndCompactToLastLevel() throws IOException {
+        db.flushMemTable();
+        for (int level = 0; level < NUM_LEVELS - 1; level++) {
+            db.compactRange(level, Slices.copiedBuffer("a", UTF_8), Slices.copiedBuffer("z", UTF_8));
+        }
+    }
+
+    /**
+     * Pushes a table overlapping the last level down to it, which rewrites its entries.
+     */
+    private void rewriteLastLevel() throws IOException {
+        db.put(bytes("m"), bytes("middle"));
+        flushAndCompactToLastLevel();
+    }
+
+    private int countEntries(String userKey) {
+        Slice key = Slices.copiedBuffer(userKey, UTF_8);
+        int count = 0;
+        DbIterator iterator = db.internalIterator();
+        iterator.seekToFirst();
+        while (iterator.hasNext()) {
+            Map.Entry<InternalKey, Slice> entry = iterator.next();
+            if (entry.getKey().getUserKey().equals(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+}
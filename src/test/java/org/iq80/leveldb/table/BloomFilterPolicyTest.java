@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.table;
+
+import org.iq80.leveldb.util.Slice;
+import org.iq80.leveldb.util.Slices;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Filters must be bit for bit those of the C++ implementation, which Bedrock reads back.
+ * The expected values come from leveldb's util/hash_test.cc and util/bloom_test.cc, or were
+ * computed with its {@code Hash} and {@code CreateFilter}.
+ */
+public class BloomFilterPolicyTest {
+    private final BloomFilterPolicy policy = new BloomFilterPolicy(10);
+
+    @Test
+    public void hashMatchesLevelDB() {
+        assertEquals(0xbc9f1d34, hash());
+        assertEquals(0xef1345c4, hash(0x62));
+        assertEquals(0x5b663814, hash(0xc3, 0x97));
+        assertEquals(0x323c078f, hash(0xe2, 0x99, 0xa5));
+        assertEquals(0xed21633a, hash(0xe1, 0x80, 0xb9, 0x32));
+        // hash_test hashes this one with seed 0x12345678 instead, to 0xf333dabb
+        assertEquals(0x271339ef, hash(
+                0x01, 0xc0, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x00, 0x00, 0x00, 0x00, 0x14, 0x00, 0x00, 0x00, 0x00, 0x00, 0x04, 0x00,
+                0x00, 0x00, 0x00, 0x14, 0x00, 0x00, 0x00, 0x18, 0x28, 0x00, 0x00, 0x00,
+                0x00, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00));
+    }
+
+    @Test
+    public void hashReadsSliceOffset() {
+        byte[] data = {0x11, 0x22, (byte) 0xe2, (byte) 0x99, (byte) 0xa5, 0x33};
+        assertEquals(0x323c078f, BloomFilterPolicy.hash(new Slice(data, 2, 3)));
+    }
+
+    @Test
+    public void emptyFilter() {
+        byte[] filter = policy.createFilter(Collections.<Slice>emptyList());
+        // the minimum of 64 bits, followed by the number of probes
+        assertEquals(9, filter.length);
+        assertEquals(6, filter[8]);
+        assertFalse(policy.keyMayMatch(slice("hello"), Slices.wrappedBuffer(filter)));
+        assertFalse(policy.keyMayMatch(slice("world"), Slices.wrappedBuffer(filter)));
+    }
+
+    @Test
+    public void smallFilter() {
+        Slice filter = Slices.wrappedBuffer(policy.createFilter(Arrays.asList(slice("hello"), slice("world"))));
+        assertTrue(policy.keyMayMatch(slice("hello"), filter));
+        assertTrue(policy.keyMayMatch(slice("world"), filter));
+        assertFalse(policy.keyMayMatch(slice("x"), filter));
+        assertFalse(policy.keyMayMatch(slice("foo"), filter));
+    }
+
+    @Test
+    public void filterBitsMatchLevelDB() {
+        byte[] filter = policy.createFilter(Arrays.asList(slice("hello"), slice("world")));
+        assertArrayEquals(new byte[]{0x11, 0x40, 0x00, 0x41, 0x44, 0x10, 0x40, 0x10, 0x06}, filter);
+    }
+
+    @Test
+    public void varyingLengths() {
+        // as bloom_test: no false negatives and a false positive rate under 2%
+        int mediocreFilters = 0;
+        int goodFilters = 0;
+        for (int length = 1; length <= 10000; length = nextLength(length)) {
+            List<Slice> keys = new ArrayList<>();
+            for (int i = 0; i < length; i++) {
+                keys.add(key(i));
+            }
+            Slice filter = Slices.wrappedBuffer(policy.createFilter(keys));
+            assertTrue(filter.length() <= (length * 10 / 8) + 40);
+
+            for (int i = 0; i < length; i++) {
+                assertTrue("length " + length + " key " + i, policy.keyMayMatch(key(i), filter));
+            }
+
+            int falsePositives = 0;
+            for (int i = 0; i < 10000; i++) {
+                if (policy.keyMayMatch(key(i + 1000000000), filter)) {
+                    falsePositives++;
+                }
+            }
+            double rate = falsePositives / 10000.0;
+            assertTrue("length " + length + " rate " + rate, rate <= 0.02);
+            if (rate > 0.0125) {
+                mediocreFilters++;
+            } else {
+                goodFilters++;
+            }
+        }
+        assertTrue(mediocreFilters <= goodFilters / 5);
+    }
+
+    private static int nextLength(int length) {
+        if (length < 10) {
+            return length + 1;
+        }
+        if (length < 100) {
+            return length + 10;
+        }
+        if (length < 1000) {
+            return length + 100;
+        }
+        return length + 1000;
+    }
+
+    /**
+     * Returns the little-endian encoding of {@code i}, the keys of bloom_test.
+     */
+    private static Slice key(int i) {
+        return Slices.wrappedBuffer(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(i).array());
+    }
+
+    private static int hash(int... bytes) {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return BloomFilterPolicy.hash(Slices.wrappedBuffer(data));
+    }
+
+    private static Slice slice(String value) {
+        return Slices.wrappedBuffer(value.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.iq80.leveldb.util;
+
+import org.iq80.leveldb.table.ExtendedTable;
+import org.junit.Test;
+import org.nukkit.leveldb.ExtendedCompressionType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Inflating must keep the output written so far when the output buffer grows, and run until
+ * the end of the stream, whatever the sizes of the input and output buffers.
+ */
+public class ZlibTest {
+    // around and well past the 64KB scratch buffer of the table readers
+    private static final int[] SIZES = {0, 1, 100, 4096, 65535, 65536, 65537, 200_000, 1 << 20};
+
+    private final Random random = new Random(7);
+
+    @Test
+    public void uncompressGrowsSmallOutputBuffers() throws IOException {
+        for (boolean raw : new boolean[]{false, true}) {
+            for (int size : SIZES) {
+                for (boolean compressible : new boolean[]{false, true}) {
+                    byte[] data = data(size, compressible);
+                    byte[] compressed = compress(data, raw);
+                    for (boolean direct : new boolean[]{false, true}) {
+                        ByteBuffer output = uncompress(input(compressed, direct), ByteBuffer.allocate(16), raw);
+                        output.flip();
+                        assertArrayEquals("size " + size + ", raw " + raw + ", direct " + direct, data, bytes(output));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void uncompressAppendsAfterPosition() throws IOException {
+        byte[] data = data(100_000, true);
+        for (boolean raw : new boolean[]{false, true}) {
+            ByteBuffer output = ByteBuffer.allocate(10);
+            output.put(new byte[]{1, 2, 3});
+            output = uncompress(input(compress(data, raw), false), output, raw);
+            output.flip();
+
+            byte[] expected = new byte[3 + data.length];
+            expected[0] = 1;
+            expected[1] = 2;
+            expected[2] = 3;
+            System.arraycopy(data, 0, expected, 3, data.length);
+            assertArrayEquals(expected, bytes(output));
+        }
+    }
+
+    @Test
+    public void uncompressRejectsTruncatedInput() {
+        byte[] data = data(100_000, false);
+        for (boolean raw : new boolean[]{false, true}) {
+            byte[] compressed = compress(data, raw);
+            byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+            try {
+                uncompress(input(truncated, false), ByteBuffer.allocate(16), raw);
+                fail("expected IOException");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void tableBlocksLargerThanScratchBuffer() throws IOException {
+        for (ExtendedCompressionType type : new ExtendedCompressionType[]{ExtendedCompressionType.ZLIB, ExtendedCompressionType.ZLIB_RAW}) {
+            boolean raw = type == ExtendedCompressionType.ZLIB_RAW;
+            // grow the per-thread scratch buffer, then reuse it for smaller and larger blocks
+            for (int size : new int[]{200_000, 1000, 65537, 1 << 20, 10}) {
+                byte[] data = data(size, true);
+                byte[] compressed = compress(data, raw);
+                for (boolean direct : new boolean[]{false, true}) {
+                    Slice block = ExtendedTable.uncompress(type, input(compressed, direct));
+                    assertArrayEquals(type + " size " + size, data, block.getBytes());
+
+                    // with the length recorded in the table, right or wrong
+                    assertArrayEquals(data, ExtendedTable.uncompress(type, input(compressed, direct), size).getBytes());
+                    assertArrayEquals(data, ExtendedTable.uncompress(type, input(compressed, direct), size / 2).getBytes());
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer uncompress(ByteBuffer compressed, ByteBuffer uncompressed, boolean raw) throws IOException {
+        ByteBuffer output = raw ? Zlib.uncompressRaw(compressed, uncompressed) : Zlib.uncompress(compressed, uncompressed);
+        assertEquals(0, compressed.remaining());
+        return output;
+    }
+
+    private static byte[] compress(byte[] data, boolean raw) {
+        byte[] compressed = new byte[Zlib.maxCompressedLength(data.length)];
+        try {
+            int length = raw ? Zlib.compressRaw(data, 0, data.length, compressed, 0) : Zlib.compress(data, 0, data.length, compressed, 0);
+            return Arrays.copyOf(compressed, length);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static ByteBuffer input(byte[] compressed, boolean direct) {
+        ByteBuffer input = direct ? ByteBuffer.allocateDirect(compressed.length) : ByteBuffer.allocate(compressed.length);
+        input.put(compressed).flip();
+        return input;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private byte[] data(int size, boolean compressible) {
+        byte[] data = new byte[size];
+        if (compressible) {
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) (i / 64 % 8);
+            }
+        } else {
+            random.nextBytes(data);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,75 @@
+package org.nukkit.leveldb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsAreContiguous() {
+        assertEquals(0, LatencyHistogram.getLowerBoundNanos(0));
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            long lower = LatencyHistogram.getLowerBoundNanos(i);
+            long upper = LatencyHistogram.getUpperBoundNanos(i);
+            assertEquals(upper, LatencyHistogram.getLowerBoundNanos(i + 1));
+            // never wider than an eighth of the latencies held
+            assertTrue("bucket " + i, upper - lower <= Math.max(1, lower / 8));
+
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(lower);
+            histogram.record(upper - 1);
+            assertEquals("bucket " + i, 2, histogram.getCount(i));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getUpperBoundNanos(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void outOfRangeLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount(0));
+        assertEquals(1, histogram.getCount(LatencyHistogram.BUCKETS - 1));
+        assertEquals(2, histogram.getCount());
+    }
+
+    @Test
+    public void exactBelowSixteenNanos() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(0, histogram.getPercentileNanos(0));
+        assertEquals(4, histogram.getPercentileNanos(50));
+        assertEquals(9, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void percentilesOfEmptyHistogram() {
+        assertEquals(0, new LatencyHistogram().getPercentileNanos(99));
+    }
+
+    @Test
+    public void percentilesWithinOneBucket() {
+        Random random = new Random(3);
+        long[] latencies = new long[100000];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < latencies.length; i++) {
+            // log-normal around 20 micros, with a long tail
+            latencies[i] = (long) (20000 * Math.exp(random.nextGaussian()));
+            histogram.record(latencies[i]);
+        }
+        Arrays.sort(latencies);
+
+        for (double percentile : new double[]{1, 10, 50, 90, 99, 99.9}) {
+            long expected = latencies[(int) Math.ceil(latencies.length * percentile / 100) - 1];
+            long actual = histogram.getPercentileNanos(percentile);
+            assertTrue("p" + percentile + " " + actual + " vs " + expected,
+                    Math.abs(actual - expected) <= expected / 8);
+        }
+    }
+}